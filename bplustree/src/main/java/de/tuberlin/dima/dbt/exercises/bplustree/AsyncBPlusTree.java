@@ -0,0 +1,265 @@
+package de.tuberlin.dima.dbt.exercises.bplustree;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Function;
+
+/**
+ * Asynchronous facade for a B+ tree that is shared by many client threads.
+ * <p>
+ * Requests are queued and applied in batches by a single drain task on the
+ * given executor. Each batch is sorted by key, so that consecutive lookups
+ * that fall into the same leaf share one descent (see {BPlusTree.lookupAll}),
+ * and so do consecutive inserts (see {BPlusTree.merge}). Requests for the
+ * same key are applied in the order in which they were submitted.
+ * <p>
+ * The facade never blocks a client thread and uses no monitors, so it does
+ * not pin the carrier threads of virtual threads. The tree is guarded by a
+ * {StampedLock}; other code that accesses the tree directly while the facade
+ * is in use should do so through {read} and {write}.
+ * <p>
+ * Clients must not block on the returned futures from tasks of the same
+ * bounded executor that runs the drain task, or the drain task may never get
+ * to run.
+ */
+public class AsyncBPlusTree {
+
+    private static final int MAX_BATCH_SIZE = 1024;
+
+    private static class Request {
+
+        final Integer key;
+
+        final String value;
+
+        final boolean write;
+
+        final CompletableFuture<String> future = new CompletableFuture<>();
+
+        Request(Integer key, String value, boolean write) {
+            this.key = key;
+            this.value = value;
+            this.write = write;
+        }
+    }
+
+    private final BPlusTree tree;
+
+    private final Executor executor;
+
+    private final StampedLock lock = new StampedLock();
+
+    private final Queue<Request> pending = new ConcurrentLinkedQueue<>();
+
+    private final AtomicBoolean draining = new AtomicBoolean(false);
+
+    public AsyncBPlusTree(BPlusTree tree, Executor executor) {
+        this.tree = tree;
+        this.executor = executor;
+    }
+
+    /**
+     * Lookup the value stored under the given key.
+     *
+     * @return A future for the stored value, or {null} if the key does not
+     * exist.
+     */
+    public CompletableFuture<String> lookupAsync(Integer key) {
+        return submit(new Request(Objects.requireNonNull(key), null, false));
+    }
+
+    /**
+     * Insert the key/value pair into the tree, replacing an existing value
+     * for the key like {BPlusTree.put}.
+     *
+     * @return A future that completes once the pair has been inserted.
+     */
+    public CompletableFuture<Void> insertAsync(Integer key, String value) {
+        Request request = new Request(Objects.requireNonNull(key), Objects.requireNonNull(value), true);
+        return submit(request).thenApply(previous -> null);
+    }
+
+    /**
+     * Run a read-only operation on the tree under the shared lock.
+     */
+    public <T> T read(Function<BPlusTree, T> operation) {
+        long stamp = lock.readLock();
+        try {
+            return operation.apply(tree);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Run a modifying operation on the tree under the exclusive lock.
+     */
+    public <T> T write(Function<BPlusTree, T> operation) {
+        long stamp = lock.writeLock();
+        try {
+            return operation.apply(tree);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    private CompletableFuture<String> submit(Request request) {
+        pending.add(request);
+        scheduleDrain();
+        return request.future;
+    }
+
+    private void scheduleDrain() {
+        if (draining.compareAndSet(false, true)) {
+            executor.execute(this::drain);
+        }
+    }
+
+    private void drain() {
+        try {
+            List<Request> batch = new ArrayList<>();
+            Request request;
+            while (batch.size() < MAX_BATCH_SIZE && (request = pending.poll()) != null) {
+                batch.add(request);
+            }
+            try {
+                apply(batch);
+            } catch (Throwable e) {
+                // do not leave clients waiting, completed futures stay as they are
+                batch.forEach(pendingRequest -> pendingRequest.future.completeExceptionally(e));
+                throw e;
+            }
+        } finally {
+            draining.set(false);
+            // pick up requests that arrived after the last poll
+            if (!pending.isEmpty()) {
+                scheduleDrain();
+            }
+        }
+    }
+
+    private void apply(List<Request> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        // the sort is stable, so requests for the same key keep their order
+        batch.sort(Comparator.comparing(request -> request.key));
+        boolean write = batch.stream().anyMatch(request -> request.write);
+        String[] results = new String[batch.size()];
+        // a failure only fails its own request, the others have been applied
+        Throwable[] failures = new Throwable[batch.size()];
+        long stamp = write ? lock.writeLock() : lock.readLock();
+        try {
+            int start = 0;
+            while (start < batch.size()) {
+                boolean writes = batch.get(start).write;
+                int end = start;
+                while (end < batch.size() && batch.get(end).write == writes) {
+                    end++;
+                }
+                if (writes) {
+                    applyWrites(batch, start, end, failures);
+                } else {
+                    applyLookups(batch, start, end, results, failures);
+                }
+                start = end;
+            }
+        } finally {
+            lock.unlock(stamp);
+        }
+        // complete outside of the lock, dependent actions may run right away
+        for (int i = 0; i < batch.size(); i++) {
+            if (failures[i] != null) {
+                batch.get(i).future.completeExceptionally(failures[i]);
+            } else {
+                batch.get(i).future.complete(results[i]);
+            }
+        }
+    }
+
+    /**
+     * Merge a sorted run of writes into the tree, so that writes into the
+     * same leaf share one descent (see {BPlusTree.merge}). A write that fails
+     * is skipped and the merge continues after it.
+     */
+    private void applyWrites(List<Request> batch, int start, int end, Throwable[] failures) {
+        int next = start;
+        while (next < end) {
+            RunIterator writes = new RunIterator(batch, next, end);
+            try {
+                tree.merge(writes);
+                next = end;
+            } catch (Throwable e) {
+                // the write that was taken last has failed
+                failures[writes.index - 1] = e;
+                next = writes.index;
+            }
+        }
+    }
+
+    private void applyLookups(List<Request> batch, int start, int end, String[] results, Throwable[] failures) {
+        List<Integer> keys = new ArrayList<>();
+        for (int i = start; i < end; i++) {
+            keys.add(batch.get(i).key);
+        }
+        try {
+            List<String> values = tree.lookupAll(keys);
+            for (int i = start; i < end; i++) {
+                results[i] = values.get(i - start);
+            }
+        } catch (Throwable e) {
+            // repeat the lookups one by one to find the failing ones
+            for (int i = start; i < end; i++) {
+                try {
+                    results[i] = tree.lookup(batch.get(i).key);
+                } catch (Throwable f) {
+                    failures[i] = f;
+                }
+            }
+        }
+    }
+
+    /**
+     * The key/value pairs of a run of writes, which remembers how far it got.
+     */
+    private static class RunIterator implements Iterator<Map.Entry<Integer, String>> {
+
+        private final List<Request> batch;
+
+        private final int end;
+
+        int index;
+
+        RunIterator(List<Request> batch, int start, int end) {
+            this.batch = batch;
+            this.index = start;
+            this.end = end;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return index < end;
+        }
+
+        @Override
+        public Map.Entry<Integer, String> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Request request = batch.get(index++);
+            return new AbstractMap.SimpleImmutableEntry<>(request.key, request.value);
+        }
+    }
+}
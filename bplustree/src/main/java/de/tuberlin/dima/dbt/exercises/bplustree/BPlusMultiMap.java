@@ -0,0 +1,137 @@
+package de.tuberlin.dima.dbt.exercises.bplustree;
+
+import java.util.Arrays;
+import java.util.PrimitiveIterator;
+
+/**
+ * B+ tree that maps every key to a set of value ids, e.g., for an index on a
+ * non-unique attribute.
+ * <p>
+ * The tree holds every key once, so the separator rules of {BPlusTree} hold
+ * as they are. The value of a key is its {PostingList}, which keeps the ids
+ * sorted and delta-encoded in the leaf and moves long lists into overflow
+ * pages. The tree must not be modified other than through this class.
+ * <p>
+ * Every modification updates the posting list of its key in a single
+ * descent (see {BPlusTree.compute}). The overflow pages live in memory
+ * only: they are neither serialized with the tree nor written by a
+ * {Checkpointer}, so a tree with overflowing posting lists cannot be
+ * restored from either.
+ */
+public class BPlusMultiMap {
+
+    private final BPlusTree tree;
+
+    private final PostingList.PageStore pages = new PostingList.PageStore();
+
+    public BPlusMultiMap(int capacity) {
+        this(new BPlusTree(capacity));
+    }
+
+    public BPlusMultiMap(BPlusTree tree) {
+        this.tree = tree;
+    }
+
+    /**
+     * Add the value id to the ids of the key.
+     *
+     * @return Whether the id was not stored under the key yet.
+     */
+    public boolean put(Integer key, long id) {
+        boolean[] added = {false};
+        tree.compute(key, (k, value) -> {
+            PostingList list = decode(value);
+            added[0] = list.add(id);
+            return added[0] ? encode(list) : value;
+        });
+        return added[0];
+    }
+
+    /**
+     * Add all value ids to the ids of the key. The posting list of the key
+     * is rewritten once instead of once per id, e.g., for a bulk load.
+     *
+     * @return The number of ids that were not stored under the key yet.
+     */
+    public int putAll(Integer key, long[] ids) {
+        long[] sorted = ids.clone();
+        Arrays.sort(sorted);
+        int[] added = {0};
+        tree.compute(key, (k, value) -> {
+            PostingList list = decode(value);
+            added[0] = list.addAll(sorted);
+            return added[0] > 0 ? encode(list) : value;
+        });
+        return added[0];
+    }
+
+    /**
+     * Remove the value id from the ids of the key.
+     *
+     * @return Whether the id was stored under the key.
+     */
+    public boolean remove(Integer key, long id) {
+        boolean[] removed = {false};
+        tree.compute(key, (k, value) -> {
+            if (value == null) {
+                return null;
+            }
+            PostingList list = decode(value);
+            removed[0] = list.remove(id);
+            return removed[0] ? encode(list) : value;
+        });
+        return removed[0];
+    }
+
+    /**
+     * Remove the key with all its value ids.
+     *
+     * @return The number of removed ids.
+     */
+    public int removeAll(Integer key) {
+        String value = tree.delete(key);
+        if (value == null) {
+            return 0;
+        }
+        PostingList list = PostingList.decode(value, pages);
+        int count = list.size();
+        list.clear();
+        return count;
+    }
+
+    /**
+     * @return The number of value ids stored under the key.
+     */
+    public int count(Integer key) {
+        String value = tree.lookup(key);
+        return value == null ? 0 : PostingList.decode(value, pages).size();
+    }
+
+    /**
+     * Iterate over the value ids of the key in ascending order. The map must
+     * not be modified during the iteration.
+     */
+    public PrimitiveIterator.OfLong get(Integer key) {
+        String value = tree.lookup(key);
+        return value == null ? new PostingList(pages).iterator() : PostingList.decode(value, pages).iterator();
+    }
+
+    /**
+     * @return The number of overflow pages in use.
+     */
+    public int overflowPages() {
+        return pages.size();
+    }
+
+    private PostingList decode(String value) {
+        return value == null ? new PostingList(pages) : PostingList.decode(value, pages);
+    }
+
+    /**
+     * @return The encoded list, or {null} to delete the key of an empty
+     * list.
+     */
+    private static String encode(PostingList list) {
+        return list.isEmpty() ? null : list.encode();
+    }
+}
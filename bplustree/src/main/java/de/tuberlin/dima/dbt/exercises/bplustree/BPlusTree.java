@@ -1,8 +1,19 @@
 package de.tuberlin.dima.dbt.exercises.bplustree;
 
+import java.util.AbstractMap;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Deque;
+import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
 
 /**
  * Implementation of a B+ tree.
@@ -11,6 +22,10 @@ import java.util.LinkedList;
  * constructor. Each node has at least {capacity/2} and at most {capacity} many
  * keys. The values are strings and are stored at the leaves of the tree.
  * <p>
+ * Leaves and inner nodes can also be given different capacities, e.g., large
+ * leaves for scans and smaller inner nodes for fan-out, either as entry counts
+ * or as node sizes in bytes via {withNodeSizes}.
+ * <p>
  * For each inner node, the following conditions hold:
  * <p>
  * {pre}
@@ -21,63 +36,84 @@ import java.util.LinkedList;
  * - All keys in {children[i].getKeys()} are smaller than {keys[i]}.
  * - All keys in {children[j].getKeys()} are greater or equal than {keys[i]}
  * if j > i.
+ * <p>
+ * As in a B-link tree, every node also stores a high key, the smallest key
+ * of its right sibling, and a link to that sibling. A descent that arrives
+ * at a node whose high key is not larger than the search key moves right
+ * instead of restarting from the root, and scans follow the links of the
+ * leaves. Nodes are also linked to their left sibling, so that descending
+ * scans can walk the leaves backwards.
  */
 public class BPlusTree {
 
     ///// Implement these methods
     private void insertIntoLeafNode(Integer key, String value, LeafNode node, Deque<InnerNode> parents) {
-        int index = 0;
-        while (index < node.getKeys().length && (node.getKeys()[index] != null && key.compareTo(node.getKeys()[index]) > 0)) {
-            index++;
-        }
+        markPath(parents);
+        int size = node.size();
+        int index = node.lowerBound(key, size);
 
-        Integer[] newKeys = new Integer[node.size() + 1];
-        String[] newValues = new String[node.size() + 1];
+        Integer[] newKeys = new Integer[size + 1];
+        String[] newValues = new String[size + 1];
 
         System.arraycopy(node.getKeys(), 0, newKeys, 0, index);
         newKeys[index] = key;
-        System.arraycopy(node.getKeys(), index, newKeys, index + 1, node.size() - index);
+        System.arraycopy(node.getKeys(), index, newKeys, index + 1, size - index);
 
         System.arraycopy(node.getValues(), 0, newValues, 0, index);
         newValues[index] = value;
-        System.arraycopy(node.getValues(), index, newValues, index + 1, node.size() - index);
+        System.arraycopy(node.getValues(), index, newValues, index + 1, size - index);
 
-        node.setKeysTemp(newKeys);
-        node.setValueTemp(newValues);
-
-        /**
-         * 调整node
-         * 此时node.size()==node.keys.length
-         * 1. node.keys.length<capacity
-         * 2. node.keys.length>capacity
-         * */
-        if (node.size() < capacity) {
-            node.setKeys(node.keys);
-            node.setValues(node.getValues());
-        }else if (node.size() > capacity) {
-            LeafNode newLeafNode = splitLeafNode(node);
-            InnerNode parent = updateParents(parents);
-            // Corrected: Insert new key from the split leaf into the parent node
-            insertIntoInnerNode(newLeafNode.getKeys()[0], newLeafNode, parent, parents);
+        splitPolicy.recordInsert(size + 1, index);
+        node.markDirty();
+        for (InnerNode parent : parents) {
+            parent.adjustEntryCount(1);
+        }
+        if (size + 1 <= leafCapacity) {
+            node.setKeys(newKeys);
+            node.setValues(newValues);
+        } else {
+            node.setKeysTemp(newKeys);
+            node.setValueTemp(newValues);
+            LeafNode newLeafNode = splitLeafNode(node, index, isRightmost(node, parents));
+            insertIntoParent(newLeafNode.getKeys()[0], node, newLeafNode, parents);
         }
     }
 
     private void insertIntoInnerNode(Integer key, Node child, InnerNode node, Deque<InnerNode> parents) {
-        int index = 0;
-        while (index < node.getKeys().length && (node.getKeys()[index] != null && key.compareTo(node.getKeys()[index]) > 0)) {
-            index++;
+        int size = node.size();
+        int index = node.lowerBound(key, size);
+
+        Integer[] newKeys = new Integer[size + 1];
+        Node[] newChildren = new Node[size + 2];
+
+        System.arraycopy(node.getKeys(), 0, newKeys, 0, index);
+        newKeys[index] = key;
+        System.arraycopy(node.getKeys(), index, newKeys, index + 1, size - index);
+
+        System.arraycopy(node.getChildren(), 0, newChildren, 0, index + 1);
+        newChildren[index + 1] = child;
+        System.arraycopy(node.getChildren(), index + 1, newChildren, index + 2, size - index);
+
+        node.markDirty();
+        if (size + 1 <= innerCapacity) {
+            node.setKeys(newKeys);
+            node.setChildren(newChildren);
+        } else {
+            splitInnerNode(node, newKeys, newChildren, parents);
         }
-        // Shift keys and children to make space for the new entry
-        System.arraycopy(node.getKeys(), index, node.getKeys(), index + 1, node.getKeys().length - index - 1);
-        System.arraycopy(node.getChildren(), index + 1, node.getChildren(), index + 2, node.getChildren().length - index - 2);
-        // Insert new key and child
-        node.getKeys()[index] = key;
-        node.getChildren()[index + 1] = child;
-        // Split inner node if necessary
-        if (node.getKeys().length > capacity) {
-            InnerNode newInnerNode = splitInnerNode(node);
-            InnerNode parent = updateParents(parents);
-            insertIntoInnerNode(newInnerNode.getKeys()[0], newInnerNode, parent, parents);
+    }
+
+    /**
+     * Insert the separator key and the new right node created by a split
+     * into the parent of the left node. If the left node is the root, a new
+     * root is created.
+     */
+    private void insertIntoParent(Integer key, Node left, Node right, Deque<InnerNode> parents) {
+        structureChanged();
+        if (parents.isEmpty()) {
+            root = new InnerNode(new Integer[]{key}, new Node[]{left, right}, innerCapacity);
+        } else {
+            insertIntoInnerNode(key, right, parents.pop(), parents);
         }
     }
 
@@ -86,37 +122,249 @@ public class BPlusTree {
      * Insert the key/value pair into the B+ tree.
      */
     public void insert(Integer key, String value) {
+        if (appendToRightmostLeaf(key, value)) {
+            return;
+        }
         Deque<InnerNode> parents = new LinkedList<>();
         LeafNode leafNode = findLeafNode(key, parents);
         insertIntoLeafNode(key, value, leafNode, parents);
     }
 
+    /**
+     * Insert the key/value pair, replacing the value of an existing key.
+     *
+     * @return The previous value, or {null} if the key did not exist.
+     */
+    public String put(Integer key, String value) {
+        Objects.requireNonNull(value);
+        Deque<InnerNode> parents = new LinkedList<>();
+        LeafNode leafNode = findLeafNode(key, parents);
+        int index = indexOf(key, leafNode);
+        String previous = index >= 0 ? leafNode.getValues()[index] : null;
+        store(key, value, leafNode, index, parents);
+        return previous;
+    }
+
+    /**
+     * Insert the key/value pair unless the key exists.
+     *
+     * @return The existing value, or {null} if the pair was inserted.
+     */
+    public String putIfAbsent(Integer key, String value) {
+        Objects.requireNonNull(value);
+        Deque<InnerNode> parents = new LinkedList<>();
+        LeafNode leafNode = findLeafNode(key, parents);
+        int index = indexOf(key, leafNode);
+        if (index >= 0) {
+            return leafNode.getValues()[index];
+        }
+        store(key, value, leafNode, index, parents);
+        return null;
+    }
+
+    /**
+     * Replace the value of the key if it is currently {expected}.
+     *
+     * @return Whether the value was replaced.
+     */
+    public boolean replace(Integer key, String expected, String value) {
+        Objects.requireNonNull(value);
+        Deque<InnerNode> parents = new LinkedList<>();
+        LeafNode leafNode = findLeafNode(key, parents);
+        int index = indexOf(key, leafNode);
+        if (index < 0 || !leafNode.getValues()[index].equals(expected)) {
+            return false;
+        }
+        store(key, value, leafNode, index, parents);
+        return true;
+    }
+
+    /**
+     * Compute a new value for the key from its current value, or {null} if
+     * the key does not exist. If the function returns {null}, the key is
+     * deleted; if it returns the current value itself, the tree is left as
+     * it is.
+     *
+     * @return The new value, or {null} if the key does not exist afterwards.
+     */
+    public String compute(Integer key, BiFunction<Integer, String, String> function) {
+        Deque<InnerNode> parents = new LinkedList<>();
+        LeafNode leafNode = findLeafNode(key, parents);
+        int index = indexOf(key, leafNode);
+        String current = index >= 0 ? leafNode.getValues()[index] : null;
+        String value = function.apply(key, current);
+        if (value != current) {
+            store(key, value, leafNode, index, parents);
+        }
+        return value;
+    }
+
+    /**
+     * @return The position of the key in the leaf, or -1 if it does not
+     * exist.
+     */
+    private int indexOf(Integer key, LeafNode leafNode) {
+        int size = leafNode.size();
+        int index = leafNode.lowerBound(key, size);
+        return index < size && key.equals(leafNode.getKeys()[index]) ? index : -1;
+    }
+
+    /**
+     * Store the new value for the key in the leaf that was found by a
+     * descent, given the position of the key from {indexOf}. A {null} value
+     * deletes the key.
+     */
+    private void store(Integer key, String value, LeafNode leafNode, int index, Deque<InnerNode> parents) {
+        if (index >= 0 && value != null) {
+            leafNode.getValues()[index] = value;
+            leafNode.markDirty();
+            markPath(parents);
+        } else if (value != null) {
+            insertIntoLeafNode(key, value, leafNode, parents);
+        } else if (index >= 0) {
+            delete(key, leafNode, parents);
+        }
+    }
+
+    /**
+     * Apply the writes in ascending key order, where a {null} value deletes
+     * the key, like {compute}.
+     * <p>
+     * Instead of descending from the root for every key, the merge keeps the
+     * path to the current leaf and applies all writes below its high key
+     * there. A key in the right sibling moves the path one leaf to the right,
+     * and only keys further away or a split or merge of a node lead to a new
+     * descent. A sorted batch thus costs one pass over the leaves it touches.
+     */
+    void merge(Iterator<? extends Map.Entry<Integer, String>> writes) {
+        Deque<InnerNode> parents = new LinkedList<>();
+        LeafNode leafNode = null;
+        int version = structureVersion;
+        while (writes.hasNext()) {
+            Map.Entry<Integer, String> write = writes.next();
+            Integer key = write.getKey();
+            if (leafNode != null && version == structureVersion && !covers(leafNode, key)) {
+                Node right = leafNode.getRightLink();
+                leafNode = right != null && covers(right, key) ? nextLeaf(leafNode, parents) : null;
+            }
+            if (leafNode == null || version != structureVersion) {
+                parents.clear();
+                leafNode = findLeafNode(key, parents);
+                version = structureVersion;
+            }
+            store(key, write.getValue(), leafNode, indexOf(key, leafNode), parents);
+        }
+    }
+
+    /**
+     * @return Whether a key that is not smaller than the keys the merge has
+     * already applied belongs into the node.
+     */
+    private static boolean covers(Node node, Integer key) {
+        return node.highKey == null || key.compareTo(node.highKey) < 0;
+    }
 
-    private InnerNode splitInnerNode(InnerNode node) {
-        int midIndex = node.getKeys().length / 2;
-        Integer[] newKeys = Arrays.copyOfRange(node.getKeys(), midIndex + 1, node.getKeys().length);
-        Node[] newChildren = Arrays.copyOfRange(node.getChildren(), midIndex + 1, node.getChildren().length);
-        InnerNode newInnerNode = new InnerNode(newKeys, newChildren, capacity);
+    /**
+     * Move the parents of the leaf to those of the next leaf, climbing only
+     * as far as needed.
+     *
+     * @return The right sibling of the leaf.
+     */
+    private static LeafNode nextLeaf(Node node, Deque<InnerNode> parents) {
+        while (!parents.isEmpty()) {
+            InnerNode parent = parents.peek();
+            int index = Arrays.asList(parent.getChildren()).indexOf(node);
+            if (index < parent.size()) {
+                Node child = parent.getChildren()[index + 1];
+                while (child instanceof InnerNode) {
+                    parents.push((InnerNode) child);
+                    child = ((InnerNode) child).getChildren()[0];
+                }
+                return (LeafNode) child;
+            }
+            node = parents.pop();
+        }
+        return null;
+    }
 
-        // Corrected: Update the parent keys with the first key of the new inner node
-        for (int i = midIndex; i < node.getKeys().length; i++) {
-            node.getKeys()[i] = null;
+    /**
+     * Mark the inner nodes on the path to a node that is modified, so that
+     * the next checkpoint visits them. The nodes that are modified or
+     * created themselves are dirty anyway, and so are the siblings that a
+     * split, merge, or borrow changes; they are children of the path.
+     */
+    static void markPath(Iterable<InnerNode> path) {
+        for (InnerNode node : path) {
+            node.dirtyBelow = true;
         }
+    }
 
-        return newInnerNode;
+    /**
+     * Fast path for keys larger than the current maximum: append them to the
+     * rightmost leaf without descending the tree, as long as the leaf does
+     * not have to be split.
+     *
+     * @return {true} if the key/value pair was inserted.
+     */
+    private boolean appendToRightmostLeaf(Integer key, String value) {
+        if (rightmostLeaf == null) {
+            rightmostLeaf = findRightmostLeaf();
+        }
+        int size = rightmostLeaf.size();
+        if (size == 0 || size >= leafCapacity || key.compareTo(rightmostLeaf.getKeys()[size - 1]) <= 0) {
+            return false;
+        }
+        splitPolicy.recordInsert(size + 1, size);
+        rightmostLeaf.add(key, value);
+        rightmostLeaf.markDirty();
+        markPath(rightmostPath);
+        for (InnerNode parent : rightmostPath) {
+            parent.adjustEntryCount(1);
+        }
+        return true;
     }
 
+    private LeafNode findRightmostLeaf() {
+        rightmostPath.clear();
+        return lastLeaf(rightmostPath);
+    }
+
+    private boolean isRightmost(Node node, Deque<InnerNode> parents) {
+        Node child = node;
+        for (InnerNode parent : parents) {
+            if (parent.getChildren()[parent.size()] != child) {
+                return false;
+            }
+            child = parent;
+        }
+        return true;
+    }
 
-    private LeafNode splitLeafNode(LeafNode node) {
-        int midIndex = node.getKeys().length / 2;
-        Integer[] newKeys = Arrays.copyOfRange(node.getKeys(), midIndex, node.getKeys().length);
-        String[] newValues = Arrays.copyOfRange(node.getValues(), midIndex, node.getValues().length);
-        LeafNode newLeafNode = new LeafNode(newKeys, newValues, capacity);
-        // Corrected: Remove the keys that have been moved to the new leaf node
-        node.setKeys(Arrays.copyOf(node.getKeys(), midIndex));
-        node.setValues(Arrays.copyOf(node.getValues(), midIndex));
 
-        // Corrected: Return the new leaf node
+    private void splitInnerNode(InnerNode node, Integer[] keys, Node[] children, Deque<InnerNode> parents) {
+        int midIndex = keys.length / 2;
+        InnerNode newInnerNode = new InnerNode(Arrays.copyOfRange(keys, midIndex + 1, keys.length),
+                                               Arrays.copyOfRange(children, midIndex + 1, children.length),
+                                               innerCapacity);
+        node.setKeys(Arrays.copyOf(keys, midIndex));
+        node.setChildren(Arrays.copyOf(children, midIndex + 1));
+        node.linkSplit(keys[midIndex], newInnerNode);
+        // the middle key moves up into the parent
+        insertIntoParent(keys[midIndex], node, newInnerNode, parents);
+    }
+
+
+    private LeafNode splitLeafNode(LeafNode node, int insertIndex, boolean rightmost) {
+        int splitIndex = splitPolicy.splitIndex(node.getKeys().length, insertIndex, rightmost);
+        Integer[] newKeys = Arrays.copyOfRange(node.getKeys(), splitIndex, node.getKeys().length);
+        String[] newValues = Arrays.copyOfRange(node.getValues(), splitIndex, node.getValues().length);
+        LeafNode newLeafNode = new LeafNode(newKeys, newValues, leafCapacity);
+        // the new leaf is spilled together with the rest of the tree
+        newLeafNode.spill = node.spill;
+        // Remove the keys that have been moved to the new leaf node
+        node.setKeys(Arrays.copyOf(node.getKeys(), splitIndex));
+        node.setValues(Arrays.copyOf(node.getValues(), splitIndex));
+        node.linkSplit(newKeys[0], newLeafNode);
         return newLeafNode;
     }
 
@@ -135,35 +383,261 @@ public class BPlusTree {
     }
 
     private String lookupInLeafNode(Integer key, LeafNode leafNode) {
-        int index = 0;
-        while (index < leafNode.getKeys().length && (key == null || key.compareTo(leafNode.getKeys()[index]) >= 0)) {
-            if (key != null && key.equals(leafNode.getKeys()[index])) {
-                return leafNode.getValues()[index];
-            }
-            index++;
+        if (key == null || !leafNode.mightContain(key)) {
+            return null;
+        }
+        int size = leafNode.size();
+        int index = leafNode.lowerBound(key, size);
+        if (index < size && key.equals(leafNode.getKeys()[index])) {
+            return leafNode.getValues()[index];
         }
         return null;
     }
 
 
-    private LeafNode findLeafNode(Integer key) {
-        Node currentNode = root;
-        while (currentNode instanceof InnerNode) {
-            InnerNode innerNode = (InnerNode) currentNode;
+    /**
+     * Pass all key/value pairs with {from <= key < to} to the consumer in
+     * ascending key order. A {null} bound means the range is unbounded on
+     * that side.
+     */
+    public void scan(Integer from, Integer to, BiConsumer<Integer, String> consumer) {
+        LeafNode leafNode = findLeafNode(from);
+        while (leafNode != null) {
+            int size = leafNode.size();
+            for (int i = from == null ? 0 : leafNode.lowerBound(from, size); i < size; i++) {
+                Integer key = leafNode.getKeys()[i];
+                if (to != null && key.compareTo(to) >= 0) {
+                    return;
+                }
+                consumer.accept(key, leafNode.getValues()[i]);
+            }
+            leafNode = (LeafNode) leafNode.getRightLink();
+        }
+    }
+
+    /**
+     * Iterate over all key/value pairs with {from <= key < to} in descending
+     * key order. A {null} bound means the range is unbounded on that side.
+     * The iteration descends once to the upper bound and then follows the
+     * left links of the leaves. The tree must not be modified during the
+     * iteration.
+     */
+    public Iterator<Map.Entry<Integer, String>> descendingRange(Integer from, Integer to) {
+        LeafNode leafNode = to == null ? lastLeaf(null) : findLeafNode(to);
+        int size = leafNode.size();
+        return new DescendingIterator(leafNode, (to == null ? size : leafNode.lowerBound(to, size)) - 1, from);
+    }
+
+    /**
+     * @return The key/value pairs with the {n} largest keys, in descending
+     * key order.
+     */
+    public List<Map.Entry<Integer, String>> lastN(int n) {
+        List<Map.Entry<Integer, String>> entries = new ArrayList<>(Math.min(n, size()));
+        Iterator<Map.Entry<Integer, String>> iterator = descendingRange(null, null);
+        while (entries.size() < n && iterator.hasNext()) {
+            entries.add(iterator.next());
+        }
+        return entries;
+    }
+
+    /**
+     * @return A new, unpositioned cursor over this tree. Cursors are meant
+     * to be kept and reused across scans instead of creating an iterator per
+     * scan.
+     */
+    public Cursor cursor() {
+        return new Cursor(this);
+    }
+
+    /**
+     * @param path Receives the inner nodes on the way to the leaf, unless
+     *             {null}.
+     */
+    private LeafNode lastLeaf(List<InnerNode> path) {
+        Node node = root;
+        while (node instanceof InnerNode) {
+            InnerNode innerNode = (InnerNode) node;
+            if (path != null) {
+                path.add(innerNode);
+            }
+            node = innerNode.getChildren()[innerNode.size()];
+        }
+        return (LeafNode) node;
+    }
+
+    /**
+     * Walks the leaves from right to left.
+     */
+    private static class DescendingIterator implements Iterator<Map.Entry<Integer, String>> {
+
+        private LeafNode leafNode;
+
+        private int index;
+
+        private final Integer from;
+
+        DescendingIterator(LeafNode leafNode, int index, Integer from) {
+            this.leafNode = leafNode;
+            this.index = index;
+            this.from = from;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (index < 0 && leafNode.getLeftLink() != null) {
+                leafNode = (LeafNode) leafNode.getLeftLink();
+                index = leafNode.size() - 1;
+            }
+            return index >= 0 && (from == null || leafNode.getKeys()[index].compareTo(from) >= 0);
+        }
+
+        @Override
+        public Map.Entry<Integer, String> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Map.Entry<Integer, String> entry = new AbstractMap.SimpleImmutableEntry<>(leafNode.getKeys()[index],
+                                                                                       leafNode.getValues()[index]);
+            index--;
+            return entry;
+        }
+    }
+
+
+    /**
+     * Lookup the values stored under the given keys, which must be sorted in
+     * ascending order. Consecutive keys that fall into the same leaf share one
+     * descent.
+     *
+     * @return The stored values, with {null} for keys that do not exist.
+     */
+    public List<String> lookupAll(List<Integer> keys) {
+        List<String> values = new ArrayList<>(keys.size());
+        LeafNode leafNode = null;
+        Integer upper = null;
+        for (Integer key : keys) {
+            if (leafNode == null || (upper != null && key.compareTo(upper) >= 0)) {
+                // descend again and remember where the new leaf ends
+                upper = null;
+                Node node = root;
+                while ((node = moveRight(node, key)) instanceof InnerNode) {
+                    InnerNode innerNode = (InnerNode) node;
+                    int size = innerNode.size();
+                    int index = innerNode.upperBound(key, size);
+                    if (index < size) {
+                        upper = innerNode.getKeys()[index];
+                    }
+                    node = innerNode.getChildren()[index];
+                }
+                leafNode = (LeafNode) node;
+            }
+            values.add(lookupInLeafNode(key, leafNode));
+        }
+        return values;
+    }
+
+    /**
+     * @return The number of key/value pairs in the tree.
+     */
+    public int size() {
+        return root.entryCount();
+    }
+
+    /**
+     * @return The number of keys in the tree that are smaller than the given
+     * key.
+     */
+    public int rank(Integer key) {
+        return rank(key, false);
+    }
+
+    /**
+     * Count the keys that are smaller than the given key, or not greater if
+     * {inclusive} is set. Only the children left of the search path are
+     * counted, using their entry counts.
+     */
+    int rank(Integer key, boolean inclusive) {
+        int rank = 0;
+        Node node = root;
+        while (node instanceof InnerNode) {
+            InnerNode innerNode = (InnerNode) node;
+            int index = innerNode.upperBound(key, innerNode.size());
+            for (int i = 0; i < index; i++) {
+                rank += innerNode.getChildren()[i].entryCount();
+            }
+            node = innerNode.getChildren()[index];
+        }
+        LeafNode leafNode = (LeafNode) node;
+        int size = leafNode.size();
+        return rank + (inclusive ? leafNode.upperBound(key, size) : leafNode.lowerBound(key, size));
+    }
+
+    /**
+     * @return The key/value pair at the given position in key order,
+     * starting at 0.
+     * @throws IndexOutOfBoundsException If the position is not smaller than
+     *                                   the size of the tree.
+     */
+    public Map.Entry<Integer, String> select(int position) {
+        Position found = locate(position);
+        return new AbstractMap.SimpleImmutableEntry<>(found.leaf.getKeys()[found.index],
+                                                      found.leaf.getValues()[found.index]);
+    }
+
+    /**
+     * Position of a key/value pair in a leaf.
+     */
+    static final class Position {
+
+        final LeafNode leaf;
+
+        final int index;
+
+        Position(LeafNode leaf, int index) {
+            this.leaf = leaf;
+            this.index = index;
+        }
+    }
+
+    /**
+     * Find the leaf and the index in the leaf of the key/value pair at the
+     * given position in key order.
+     */
+    Position locate(int position) {
+        if (position < 0 || position >= size()) {
+            throw new IndexOutOfBoundsException("Position " + position + " in a tree of size " + size());
+        }
+        Node node = root;
+        while (node instanceof InnerNode) {
+            InnerNode innerNode = (InnerNode) node;
             int index = 0;
-            while (index < innerNode.getKeys().length - 1 && (innerNode.getKeys()[index] != null && (key == null || key.compareTo(innerNode.getKeys()[index]) >= 0))) {
+            while (position >= innerNode.getChildren()[index].entryCount()) {
+                position -= innerNode.getChildren()[index].entryCount();
                 index++;
             }
+            node = innerNode.getChildren()[index];
+        }
+        return new Position((LeafNode) node, position);
+    }
 
-            // 添加额外的检查，确保 index 不超过数组的有效范围
-            if (index < innerNode.getChildren().length) {
-                currentNode = innerNode.getChildren()[index];
-            } else {
-                // 如果 index 超过了数组的有效范围，说明当前节点没有对应的子节点，可以退出循环
-                break;
-            }
+
+    LeafNode findLeafNode(Integer key) {
+        return findLeafNode(key, root, null);
+    }
+
+
+    /**
+     * Follow the right links while the key is not smaller than the high key
+     * of the node. This happens when the node was split after its parent had
+     * been read, so a descent can continue instead of restarting at the
+     * root.
+     */
+    private Node moveRight(Node node, Integer key) {
+        while (key != null && node.highKey != null && key.compareTo(node.highKey) >= 0 && node.rightLink != null) {
+            node = node.rightLink;
         }
-        return (LeafNode) currentNode;
+        return node;
     }
 
 
@@ -172,6 +646,7 @@ public class BPlusTree {
     }
 
     private LeafNode findLeafNode(Integer key, Node node, Deque<InnerNode> parents) {
+        node = moveRight(node, key);
         if (node instanceof LeafNode) {
             return (LeafNode) node;
         } else {
@@ -179,13 +654,7 @@ public class BPlusTree {
             if (parents != null) {
                 parents.push(innerNode);
             }
-            int index = 0;
-//            while (index < innerNode.getKeys().length && key.compareTo(innerNode.getKeys()[index]) >= 0) {
-//                index++;
-//            }
-            while (index < innerNode.getKeys().length && (innerNode.getKeys()[index] != null && (key == null || key.compareTo(innerNode.getKeys()[index]) >= 0))) {
-                index++;
-            }
+            int index = key == null ? 0 : innerNode.upperBound(key, innerNode.size());
             return findLeafNode(key, innerNode.getChildren()[index], parents);
         }
     }
@@ -199,31 +668,87 @@ public class BPlusTree {
     public String delete(Integer key) {
         Deque<InnerNode> parents = new LinkedList<>();
         LeafNode leafNode = findLeafNode(key, parents);
+        return delete(key, leafNode, parents);
+    }
+
+    private String delete(Integer key, LeafNode leafNode, Deque<InnerNode> parents) {
         String deletedValue = deleteFromLeafNode(key, leafNode);
+        if (deletedValue != null) {
+            markPath(parents);
+            for (InnerNode parent : parents) {
+                parent.adjustEntryCount(-1);
+            }
+        }
 
         // 如果删除后 LeafNode 小于 最小节点数
-        if (leafNode.size() < (int) Math.ceil(this.capacity / 2.0)) {
-            updateParentsAfterDeletion(leafNode, parents);
+        if (leafNode.size() < minOccupancy(leafNode)) {
+            if (rebalanceThreshold > 0) {
+                // leave the leaf underfull and rebalance later
+                if (deletedValue != null) {
+                    deferRebalancing(key);
+                }
+            } else {
+                structureChanged();
+                markPath(parents);
+                updateParentsAfterDeletion(leafNode, parents);
+            }
         }
 
         return deletedValue;
     }
 
-    private String deleteFromLeafNode(Integer key, LeafNode node) {
-        int index = 0;
-        while (index < node.getKeys().length && key > node.getKeys()[index]) {
-            index++;
+    /**
+     * Enable deferred rebalancing after deletions.
+     * <p>
+     * With a positive threshold, deletions only remove the entry from its
+     * leaf and may leave the leaf underfull. Underfull leaves are rebalanced
+     * once {threshold} deletions have left leaves underfull, or when
+     * {rebalance()} is called. A threshold of 0 rebalances immediately,
+     * which is the default.
+     */
+    public void setDeferredRebalancing(int threshold) {
+        assert threshold >= 0;
+        this.rebalanceThreshold = threshold;
+        if (threshold == 0) {
+            rebalance();
+        }
+    }
+
+    /**
+     * Rebalance all leaves that were left underfull by deferred deletions.
+     */
+    public void rebalance() {
+        if (pendingRebalance.isEmpty()) {
+            return;
         }
-        if (index < node.getKeys().length && key.equals(node.getKeys()[index])) {
+        BPlusTreeCompactor compactor = new BPlusTreeCompactor(this);
+        for (Integer key : pendingRebalance) {
+            compactor.rebalance(key);
+        }
+        pendingRebalance.clear();
+    }
+
+    private void deferRebalancing(Integer key) {
+        pendingRebalance.add(key);
+        if (pendingRebalance.size() >= rebalanceThreshold) {
+            rebalance();
+        }
+    }
+
+    private String deleteFromLeafNode(Integer key, LeafNode node) {
+        int size = node.size();
+        int index = node.lowerBound(key, size);
+        if (index < size && key.equals(node.getKeys()[index])) {
             String deletedValue = node.getValues()[index];
-            Integer[] newKeys = new Integer[node.getKeys().length - 1];
-            String[] newValues = new String[node.getValues().length - 1];
+            Integer[] newKeys = new Integer[size - 1];
+            String[] newValues = new String[size - 1];
             System.arraycopy(node.getKeys(), 0, newKeys, 0, index);
-            System.arraycopy(node.getKeys(), index + 1, newKeys, index, node.getKeys().length - index - 1);
+            System.arraycopy(node.getKeys(), index + 1, newKeys, index, size - index - 1);
             System.arraycopy(node.getValues(), 0, newValues, 0, index);
-            System.arraycopy(node.getValues(), index + 1, newValues, index, node.getValues().length - index - 1);
+            System.arraycopy(node.getValues(), index + 1, newValues, index, size - index - 1);
             node.setKeys(newKeys);
             node.setValues(newValues);
+            node.markDirty();
             return deletedValue;
         }
         return null;
@@ -233,8 +758,16 @@ public class BPlusTree {
 
 
     private void updateParentsAfterDeletion(Node node, Deque<InnerNode> parents) {
-        if (node.size() >= Math.ceil(capacity / 2.0) || parents.isEmpty()) {
-            // 如果节点有足够的键或没有父节点（根节点），则不需要进一步操作
+        if (parents.isEmpty()) {
+            // 根节点只剩一个子节点时，树的高度减一
+            if (node instanceof InnerNode && node.size() == 0) {
+                root = ((InnerNode) node).getChildren()[0];
+            }
+            return;
+        }
+        int minOccupancy = minOccupancy(node);
+        if (node.size() >= minOccupancy) {
+            // 如果节点有足够的键，则不需要进一步操作
             return;
         }
 
@@ -243,10 +776,10 @@ public class BPlusTree {
         Node leftSibling = childIndex > 0 ? parent.getChildren()[childIndex - 1] : null;
         Node rightSibling = childIndex < parent.getChildren().length - 1 ? parent.getChildren()[childIndex + 1] : null;
 
-        if (leftSibling != null && leftSibling.size() > Math.ceil(capacity / 2.0)) {
+        if (leftSibling != null && leftSibling.size() > minOccupancy) {
             // 从左兄弟借用
             borrowFromSibling(node, leftSibling, parent, childIndex, true);
-        } else if (rightSibling != null && rightSibling.size() > Math.ceil(capacity / 2.0)) {
+        } else if (rightSibling != null && rightSibling.size() > minOccupancy) {
             // 从右兄弟借用
             borrowFromSibling(node, rightSibling, parent, childIndex, false);
         } else {
@@ -294,9 +827,17 @@ public class BPlusTree {
                 Node borrowedChild = siblingNode.getChildren()[0];
                 targetNode.add(parent.getKeys()[childIndex], borrowedChild);
                 siblingNode.shiftLeft();
-                parent.getKeys()[childIndex] = siblingNode.getKeys()[0];
+                parent.getKeys()[childIndex] = borrowedKey;
             }
+            targetNode.recount();
+            siblingNode.recount();
         }
+        node.markDirty();
+        sibling.markDirty();
+        parent.markDirty();
+        // the separator between the two nodes has moved
+        Node left = isLeftSibling ? sibling : node;
+        left.highKey = parent.getKeys()[isLeftSibling ? childIndex - 1 : childIndex];
     }
 
     private void mergeNodes(Node node, Node sibling, InnerNode parent, int childIndex, boolean isLeftSibling) {
@@ -305,51 +846,173 @@ public class BPlusTree {
             LeafNode sourceNode = isLeftSibling ? (LeafNode) node : (LeafNode) sibling;
             targetNode.merge(sourceNode);
             parent.removeChildAt(isLeftSibling ? childIndex : childIndex + 1);
+            sourceNode.discard();
         } else if (node instanceof InnerNode && sibling instanceof InnerNode) {
             InnerNode targetNode = isLeftSibling ? (InnerNode) sibling : (InnerNode) node;
             InnerNode sourceNode = isLeftSibling ? (InnerNode) node : (InnerNode) sibling;
             targetNode.merge(parent.getKeys()[isLeftSibling ? childIndex - 1 : childIndex], sourceNode);
+            targetNode.recount();
             parent.removeChildAt(isLeftSibling ? childIndex : childIndex + 1);
         }
+        // the left node takes over the place of the right node in its level
+        Node left = isLeftSibling ? sibling : node;
+        Node right = isLeftSibling ? node : sibling;
+        left.markDirty();
+        parent.markDirty();
+        left.link(right.highKey, right.rightLink);
     }
 
 
-    private InnerNode updateParents(Deque<InnerNode> parents) {
-        InnerNode parent = parents.pop();
-        if (parents.isEmpty()) {
-            root = parent;
-            return parent;
-        } else {
-            InnerNode grandParent = updateParents(parents);
-            int index = 0;
-            while (index < grandParent.getChildren().length && grandParent.getChildren()[index] != parent) {
-                index++;
-            }
-            grandParent.getChildren()[index] = parent;
-            return grandParent;
-        }
-    }
-
     ///// Leave these methods unchanged
 
-    private int capacity = 0;
+    private int leafCapacity = 0;
+
+    private int innerCapacity = 0;
 
     private Node root;
 
+    private SplitPolicy splitPolicy = SplitPolicy.midpoint();
+
+    /**
+     * Cached rightmost leaf for the append fast path, or {null} if it has to
+     * be looked up again after a structural change.
+     */
+    private LeafNode rightmostLeaf;
+
+    /**
+     * Inner nodes on the path to {rightmostLeaf}, whose entry counts the
+     * append fast path has to maintain.
+     */
+    private final List<InnerNode> rightmostPath = new ArrayList<>();
+
+    /**
+     * Incremented on every structural change, so that a {merge} knows when
+     * its path to the current leaf is outdated.
+     */
+    private int structureVersion = 0;
+
+    private int rebalanceThreshold = 0;
+
+    /**
+     * Keys whose deletion left a leaf underfull while rebalancing is deferred.
+     */
+    private final Set<Integer> pendingRebalance = new TreeSet<>();
+
+    /**
+     * Estimated heap size of a leaf entry: a key reference, a boxed key, and
+     * a value reference. The value strings themselves are not counted.
+     */
+    static final int LEAF_ENTRY_BYTES = 24;
+
+    /**
+     * Estimated heap size of an inner node entry: a key reference, a boxed
+     * key, and a child reference.
+     */
+    static final int INNER_ENTRY_BYTES = 24;
+
     public BPlusTree(int capacity) {
-        this(new LeafNode(capacity), capacity);
+        this(capacity, capacity);
+    }
+
+    public BPlusTree(int leafCapacity, int innerCapacity) {
+        this(new LeafNode(leafCapacity), leafCapacity, innerCapacity);
     }
 
     public BPlusTree(Node root, int capacity) {
-        assert capacity % 2 == 0;
-        this.capacity = capacity;
+        this(root, capacity, capacity);
+    }
+
+    public BPlusTree(Node root, int leafCapacity, int innerCapacity) {
+        assert leafCapacity % 2 == 0 && innerCapacity % 2 == 0;
+        this.leafCapacity = leafCapacity;
+        this.innerCapacity = innerCapacity;
         this.root = root;
+        relink();
+    }
+
+    /**
+     * Recompute the high keys and right links of all nodes, e.g., for a tree
+     * that was assembled from separately constructed nodes.
+     */
+    void relink() {
+        relink(root, null, 0, new ArrayList<>());
+    }
+
+    private void relink(Node node, Integer highKey, int depth, List<Node> lastPerLevel) {
+        node.link(highKey, null);
+        node.leftLink = null;
+        if (depth < lastPerLevel.size()) {
+            Node left = lastPerLevel.get(depth);
+            left.link(left.highKey, node);
+            lastPerLevel.set(depth, node);
+        } else {
+            lastPerLevel.add(node);
+        }
+        if (node instanceof InnerNode) {
+            InnerNode innerNode = (InnerNode) node;
+            int size = innerNode.size();
+            for (int i = 0; i <= size; i++) {
+                relink(innerNode.getChildren()[i], i < size ? innerNode.getKeys()[i] : highKey, depth + 1, lastPerLevel);
+            }
+        }
+    }
+
+    /**
+     * Create an empty tree whose leaves and inner nodes take up about the
+     * given number of bytes.
+     */
+    public static BPlusTree withNodeSizes(int leafBytes, int innerBytes) {
+        return new BPlusTree(capacityForBytes(leafBytes, LEAF_ENTRY_BYTES),
+                             capacityForBytes(innerBytes, INNER_ENTRY_BYTES));
+    }
+
+    private static int capacityForBytes(int bytes, int entryBytes) {
+        int capacity = bytes / entryBytes;
+        return Math.max(2, capacity - capacity % 2);
     }
 
     public Node rootNode() {
         return root;
     }
 
+    /**
+     * Set the strategy used to split overflowing leaves. The default is
+     * {SplitPolicy.midpoint()}.
+     */
+    public void setSplitPolicy(SplitPolicy splitPolicy) {
+        this.splitPolicy = splitPolicy;
+    }
+
+    void setRoot(Node root) {
+        this.root = root;
+        structureChanged();
+    }
+
+    /**
+     * Drop cached node references after nodes have been split, merged, or
+     * repacked outside of the insert path.
+     */
+    void structureChanged() {
+        rightmostLeaf = null;
+        structureVersion++;
+    }
+
+    public int leafCapacity() {
+        return leafCapacity;
+    }
+
+    public int innerCapacity() {
+        return innerCapacity;
+    }
+
+    int capacityOf(Node node) {
+        return node instanceof LeafNode ? leafCapacity : innerCapacity;
+    }
+
+    int minOccupancy(Node node) {
+        return (int) Math.ceil(capacityOf(node) / 2.0);
+    }
+
     public String toString() {
         return new BPlusTreePrinter(this).toString();
     }
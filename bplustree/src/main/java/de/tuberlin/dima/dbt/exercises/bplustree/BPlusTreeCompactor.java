@@ -0,0 +1,330 @@
+package de.tuberlin.dima.dbt.exercises.bplustree;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Incremental compaction of a B+ tree.
+ * <p>
+ * After large delete waves many nodes sit just above the minimum occupancy
+ * of {capacity/2} keys. The compactor repacks the children of one inner node
+ * at a time so that they are filled up to a target fill factor, which reduces
+ * the number of nodes a range scan has to touch.
+ * <p>
+ * Compaction works bottom up: a pass first visits all parents of leaves from
+ * left to right, then all nodes one level higher, and so on up to the root.
+ * Each call to {step} repacks a bounded number of nodes and remembers where it
+ * stopped, so compaction can be interleaved with lookups, inserts, and
+ * deletes on the same tree.
+ */
+public class BPlusTreeCompactor {
+
+    private final BPlusTree tree;
+
+    private final double fillFactor;
+
+    /**
+     * Height above the leaves of the nodes whose children are repacked next,
+     * i.e., 1 for the parents of leaves.
+     */
+    private int level = 1;
+
+    /**
+     * Smallest key of the next subtree to visit on the current level, or
+     * {null} to start at the leftmost node.
+     */
+    private Integer resumeKey = null;
+
+    private boolean changedInPass = false;
+
+    public BPlusTreeCompactor(BPlusTree tree) {
+        this(tree, 0.9);
+    }
+
+    /**
+     * Create a compactor that fills nodes up to {fillFactor * capacity} keys.
+     */
+    public BPlusTreeCompactor(BPlusTree tree, double fillFactor) {
+        assert fillFactor >= 0.5 && fillFactor <= 1.0;
+        this.tree = tree;
+        this.fillFactor = fillFactor;
+    }
+
+    /**
+     * Repack the children of at most {maxNodes} inner nodes.
+     *
+     * @return {true} if the current pass over the tree has completed.
+     */
+    public boolean step(int maxNodes) {
+        for (int i = 0; i < maxNodes; i++) {
+            if (!stepOnce()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Run compaction passes until a complete pass does not change the tree.
+     */
+    public void compact() {
+        restart();
+        boolean changed = true;
+        while (changed) {
+            while (stepOnce()) {
+                // keep going until the pass is complete
+            }
+            changed = changedInPass;
+            changedInPass = false;
+        }
+    }
+
+    /**
+     * Forget the current position and start a new pass with the next step.
+     */
+    public void restart() {
+        level = 1;
+        resumeKey = null;
+        changedInPass = false;
+    }
+
+    /**
+     * Repack the nodes on the path to the given key, bottom up, as long as
+     * one of their children is underfull. This is used to catch up on
+     * rebalancing that was deferred by deletions.
+     */
+    public void rebalance(Integer key) {
+        List<InnerNode> path = new ArrayList<>();
+        descend(key, path, new ArrayList<>());
+        for (int depth = path.size() - 1; depth >= 0; depth--) {
+            InnerNode node = path.get(depth);
+            if (!hasUnderfullChild(node) || !repack(node)) {
+                break;
+            }
+            BPlusTree.markPath(path.subList(0, depth));
+            repacked(node);
+        }
+    }
+
+    /**
+     * Repack the children of the next node.
+     *
+     * @return {false} if there was no node left to visit in this pass.
+     */
+    private boolean stepOnce() {
+        List<InnerNode> path = new ArrayList<>();
+        List<Integer> upperBounds = new ArrayList<>();
+        descend(resumeKey, path, upperBounds);
+
+        int depth = path.size() - level;
+        if (depth < 0) {
+            // the tree is not high enough for this level, the pass is over
+            level = 1;
+            resumeKey = null;
+            return false;
+        }
+        InnerNode target = path.get(depth);
+        if (repack(target)) {
+            changedInPass = true;
+            BPlusTree.markPath(path.subList(0, depth));
+            repacked(target);
+        }
+
+        resumeKey = upperBounds.get(depth);
+        if (resumeKey == null) {
+            level++;
+        }
+        return true;
+    }
+
+    /**
+     * Collect the inner nodes on the path to the given key, or to the
+     * leftmost leaf if the key is {null}, together with the exclusive upper
+     * bound of the keys in their subtrees.
+     */
+    private void descend(Integer key, List<InnerNode> path, List<Integer> upperBounds) {
+        Node node = tree.rootNode();
+        Integer upper = null;
+        while (node instanceof InnerNode) {
+            InnerNode innerNode = (InnerNode) node;
+            path.add(innerNode);
+            upperBounds.add(upper);
+            int index = key == null ? 0 : innerNode.upperBound(key, innerNode.size());
+            if (index < innerNode.size()) {
+                upper = innerNode.getKeys()[index];
+            }
+            node = innerNode.getChildren()[index];
+        }
+    }
+
+    private void repacked(InnerNode node) {
+        tree.structureChanged();
+        if (node == tree.rootNode() && node.size() == 0) {
+            // the root has a single child left, drop one level
+            tree.setRoot(node.getChildren()[0]);
+        }
+    }
+
+    private boolean hasUnderfullChild(InnerNode node) {
+        for (int i = 0; i <= node.size(); i++) {
+            Node child = node.getChildren()[i];
+            if (child.size() < tree.minOccupancy(child)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    /**
+     * Compute how many nodes the given entries should be spread over.
+     * <p>
+     * For inner nodes, {entries} counts all keys including the separators
+     * between the nodes, one of which moves up into the parent per node.
+     *
+     * @return The new node count, never more than {count}.
+     */
+    private int targetCount(int entries, int count, Node node) {
+        boolean inner = node instanceof InnerNode;
+        int minKeys = tree.minOccupancy(node);
+        int fill = Math.max(minKeys, (int) Math.floor(fillFactor * tree.capacityOf(node)));
+        int target = count;
+        for (int n = 1; n < count; n++) {
+            if (ceilDiv(keysInNodes(entries, n, inner), n) <= fill) {
+                target = n;
+                break;
+            }
+        }
+        // do not produce underfull nodes
+        while (target > 1 && keysInNodes(entries, target, inner) / target < minKeys) {
+            target--;
+        }
+        return target;
+    }
+
+    private int keysInNodes(int entries, int nodes, boolean inner) {
+        return inner ? entries - (nodes - 1) : entries;
+    }
+
+    private int ceilDiv(int x, int y) {
+        return (x + y - 1) / y;
+    }
+
+    private boolean needsRepack(int target, int count, int total, boolean underfull, Node node) {
+        if (ceilDiv(total, target) > tree.capacityOf(node)) {
+            return false;
+        }
+        return target < count || (underfull && total / target >= tree.minOccupancy(node));
+    }
+
+    private boolean repack(InnerNode parent) {
+        Node first = parent.getChildren()[0];
+        if (first instanceof LeafNode) {
+            return repackLeaves(parent);
+        } else {
+            return repackInnerNodes(parent);
+        }
+    }
+
+    private boolean repackLeaves(InnerNode parent) {
+        int count = parent.size() + 1;
+        List<Integer> keys = new ArrayList<>();
+        List<String> values = new ArrayList<>();
+        boolean underfull = false;
+        for (int i = 0; i < count; i++) {
+            LeafNode leaf = (LeafNode) parent.getChildren()[i];
+            int size = leaf.size();
+            underfull |= size < tree.minOccupancy(leaf);
+            keys.addAll(Arrays.asList(leaf.getKeys()).subList(0, size));
+            values.addAll(Arrays.asList(leaf.getValues()).subList(0, size));
+        }
+        int total = keys.size();
+        LeafNode first = (LeafNode) parent.getChildren()[0];
+        int target = targetCount(total, count, first);
+        if (!needsRepack(target, count, total, underfull, first)) {
+            return false;
+        }
+
+        Integer[] separators = new Integer[target - 1];
+        int offset = 0;
+        for (int i = 0; i < target; i++) {
+            int size = total / target + (i < total % target ? 1 : 0);
+            // refill the leftmost leaves; the remaining ones are discarded
+            // below, so cursors positioned on them become stale
+            LeafNode leaf = (LeafNode) parent.getChildren()[i];
+            leaf.setKeys(keys.subList(offset, offset + size).toArray(new Integer[0]));
+            leaf.setValues(values.subList(offset, offset + size).toArray(new String[0]));
+            if (i > 0) {
+                separators[i - 1] = keys.get(offset);
+            }
+            offset += size;
+        }
+        for (int i = target; i < count; i++) {
+            ((LeafNode) parent.getChildren()[i]).discard();
+        }
+        replaceChildren(parent, separators, Arrays.copyOf(parent.getChildren(), target));
+        return true;
+    }
+
+    private boolean repackInnerNodes(InnerNode parent) {
+        int count = parent.size() + 1;
+        // flatten the grandchildren and all keys between them
+        List<Integer> keys = new ArrayList<>();
+        List<Node> children = new ArrayList<>();
+        boolean underfull = false;
+        for (int i = 0; i < count; i++) {
+            InnerNode child = (InnerNode) parent.getChildren()[i];
+            int size = child.size();
+            underfull |= size < tree.minOccupancy(child);
+            if (i > 0) {
+                keys.add(parent.getKeys()[i - 1]);
+            }
+            keys.addAll(Arrays.asList(child.getKeys()).subList(0, size));
+            children.addAll(Arrays.asList(child.getChildren()).subList(0, size + 1));
+        }
+        InnerNode first = (InnerNode) parent.getChildren()[0];
+        int target = targetCount(keys.size(), count, first);
+        // each node except the last pushes one key up into the parent
+        int total = keysInNodes(keys.size(), target, true);
+        if (!needsRepack(target, count, total, underfull, first)) {
+            return false;
+        }
+
+        Integer[] separators = new Integer[target - 1];
+        int keyOffset = 0;
+        for (int i = 0; i < target; i++) {
+            int size = total / target + (i < total % target ? 1 : 0);
+            InnerNode node = (InnerNode) parent.getChildren()[i];
+            Integer[] nodeKeys = keys.subList(keyOffset, keyOffset + size).toArray(new Integer[0]);
+            // every key consumed so far was followed by exactly one child
+            Node[] nodeChildren = children.subList(keyOffset, keyOffset + size + 1).toArray(new Node[0]);
+            node.setKeys(nodeKeys);
+            node.setChildren(nodeChildren);
+            keyOffset += size;
+            if (i < target - 1) {
+                separators[i] = keys.get(keyOffset);
+                keyOffset++;
+            }
+        }
+        replaceChildren(parent, separators, Arrays.copyOf(parent.getChildren(), target));
+        return true;
+    }
+
+    private void replaceChildren(InnerNode parent, Integer[] keys, Node[] children) {
+        Node last = parent.getChildren()[parent.size()];
+        Integer highKey = last.getHighKey();
+        Node rightLink = last.getRightLink();
+        for (int i = 0; i < children.length; i++) {
+            children[i].markDirty();
+            if (i < children.length - 1) {
+                children[i].link(keys[i], children[i + 1]);
+            } else {
+                children[i].link(highKey, rightLink);
+            }
+        }
+        parent.setKeys(keys);
+        parent.setChildren(children);
+        parent.markDirty();
+    }
+}
@@ -0,0 +1,560 @@
+package de.tuberlin.dima.dbt.exercises.bplustree;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+
+/**
+ * {NavigableMap} view of a B+ tree.
+ * <p>
+ * The view does not copy the tree. A range of the view corresponds to a
+ * range of positions in key order, which {BPlusTree.rank} computes from the
+ * entry counts of the inner nodes; navigation queries such as {floorEntry}
+ * then fetch the entry at the neighboring position with {BPlusTree.select}.
+ * Both take time logarithmic in the size of the tree, and so do {size} and
+ * the creation of an iterator. Iterators then follow the links between the
+ * leaves.
+ * <p>
+ * Changes to the view write through to the tree and vice versa. Like
+ * {java.util.TreeMap}, the map is not thread-safe, and the tree must not be
+ * modified during an iteration other than through the iterator. Keys must
+ * be unique, i.e., the tree must not contain duplicates inserted with
+ * {BPlusTree.insert}, and {null} keys and values are not permitted.
+ */
+public class BPlusTreeMap extends AbstractMap<Integer, String> implements NavigableMap<Integer, String> {
+
+    private final BPlusTree tree;
+
+    /**
+     * Lower bound of the view in key order, or {null} if unbounded.
+     */
+    private final Integer lo;
+
+    private final boolean loInclusive;
+
+    /**
+     * Upper bound of the view in key order, or {null} if unbounded.
+     */
+    private final Integer hi;
+
+    private final boolean hiInclusive;
+
+    /**
+     * Whether the view iterates in descending key order. The bounds are
+     * always in ascending key order.
+     */
+    private final boolean descending;
+
+    public BPlusTreeMap(BPlusTree tree) {
+        this(tree, null, false, null, false, false);
+    }
+
+    private BPlusTreeMap(BPlusTree tree, Integer lo, boolean loInclusive, Integer hi, boolean hiInclusive,
+                         boolean descending) {
+        this.tree = tree;
+        this.lo = lo;
+        this.loInclusive = loInclusive;
+        this.hi = hi;
+        this.hiInclusive = hiInclusive;
+        this.descending = descending;
+    }
+
+    ///// Positions in ascending key order
+
+    /**
+     * @return The position of the first entry of the view.
+     */
+    private int from() {
+        return lo == null ? 0 : tree.rank(lo, !loInclusive);
+    }
+
+    /**
+     * @return The position after the last entry of the view.
+     */
+    private int to() {
+        return hi == null ? tree.size() : tree.rank(hi, hiInclusive);
+    }
+
+    /**
+     * @return The entry with the largest key below the given key, or not
+     * above it if {inclusive} is set.
+     */
+    private Map.Entry<Integer, String> below(Integer key, boolean inclusive) {
+        int position = Math.min(tree.rank(key, inclusive), to()) - 1;
+        return position >= from() ? tree.select(position) : null;
+    }
+
+    /**
+     * @return The entry with the smallest key above the given key, or not
+     * below it if {inclusive} is set.
+     */
+    private Map.Entry<Integer, String> above(Integer key, boolean inclusive) {
+        int position = Math.max(tree.rank(key, !inclusive), from());
+        return position < to() ? tree.select(position) : null;
+    }
+
+    private Map.Entry<Integer, String> lowest() {
+        int from = from();
+        return from < to() ? tree.select(from) : null;
+    }
+
+    private Map.Entry<Integer, String> highest() {
+        int to = to();
+        return from() < to ? tree.select(to - 1) : null;
+    }
+
+    private boolean inRange(Object key) {
+        if (!(key instanceof Integer)) {
+            return false;
+        }
+        Integer k = (Integer) key;
+        if (lo != null && (loInclusive ? k.compareTo(lo) < 0 : k.compareTo(lo) <= 0)) {
+            return false;
+        }
+        return hi == null || (hiInclusive ? k.compareTo(hi) <= 0 : k.compareTo(hi) < 0);
+    }
+
+    /**
+     * @return Whether the key lies within the bounds of the view, counting
+     * the bounds themselves as inside.
+     */
+    private boolean inClosedRange(Integer key) {
+        return (lo == null || key.compareTo(lo) >= 0) && (hi == null || key.compareTo(hi) <= 0);
+    }
+
+    ///// Map
+
+    @Override
+    public int size() {
+        return Math.max(0, to() - from());
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    @Override
+    public String get(Object key) {
+        return inRange(key) ? tree.lookup((Integer) key) : null;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    @Override
+    public String put(Integer key, String value) {
+        if (!inRange(key)) {
+            throw new IllegalArgumentException("Key out of range: " + key);
+        }
+        return tree.put(key, value);
+    }
+
+    @Override
+    public String remove(Object key) {
+        return inRange(key) ? tree.delete((Integer) key) : null;
+    }
+
+    @Override
+    public Set<Map.Entry<Integer, String>> entrySet() {
+        return new AbstractSet<Map.Entry<Integer, String>>() {
+
+            @Override
+            public Iterator<Map.Entry<Integer, String>> iterator() {
+                return new EntryIterator();
+            }
+
+            @Override
+            public int size() {
+                return BPlusTreeMap.this.size();
+            }
+        };
+    }
+
+    @Override
+    public NavigableSet<Integer> keySet() {
+        return navigableKeySet();
+    }
+
+    ///// NavigableMap
+
+    @Override
+    public Comparator<? super Integer> comparator() {
+        return descending ? Comparator.reverseOrder() : null;
+    }
+
+    @Override
+    public Map.Entry<Integer, String> lowerEntry(Integer key) {
+        return descending ? above(key, false) : below(key, false);
+    }
+
+    @Override
+    public Integer lowerKey(Integer key) {
+        return keyOrNull(lowerEntry(key));
+    }
+
+    @Override
+    public Map.Entry<Integer, String> floorEntry(Integer key) {
+        return descending ? above(key, true) : below(key, true);
+    }
+
+    @Override
+    public Integer floorKey(Integer key) {
+        return keyOrNull(floorEntry(key));
+    }
+
+    @Override
+    public Map.Entry<Integer, String> ceilingEntry(Integer key) {
+        return descending ? below(key, true) : above(key, true);
+    }
+
+    @Override
+    public Integer ceilingKey(Integer key) {
+        return keyOrNull(ceilingEntry(key));
+    }
+
+    @Override
+    public Map.Entry<Integer, String> higherEntry(Integer key) {
+        return descending ? below(key, false) : above(key, false);
+    }
+
+    @Override
+    public Integer higherKey(Integer key) {
+        return keyOrNull(higherEntry(key));
+    }
+
+    @Override
+    public Map.Entry<Integer, String> firstEntry() {
+        return descending ? highest() : lowest();
+    }
+
+    @Override
+    public Map.Entry<Integer, String> lastEntry() {
+        return descending ? lowest() : highest();
+    }
+
+    @Override
+    public Integer firstKey() {
+        return keyOrThrow(firstEntry());
+    }
+
+    @Override
+    public Integer lastKey() {
+        return keyOrThrow(lastEntry());
+    }
+
+    @Override
+    public Map.Entry<Integer, String> pollFirstEntry() {
+        return removed(firstEntry());
+    }
+
+    @Override
+    public Map.Entry<Integer, String> pollLastEntry() {
+        return removed(lastEntry());
+    }
+
+    @Override
+    public NavigableMap<Integer, String> descendingMap() {
+        return new BPlusTreeMap(tree, lo, loInclusive, hi, hiInclusive, !descending);
+    }
+
+    @Override
+    public NavigableSet<Integer> navigableKeySet() {
+        return new KeySet(this);
+    }
+
+    @Override
+    public NavigableSet<Integer> descendingKeySet() {
+        return new KeySet(descendingMap());
+    }
+
+    @Override
+    public NavigableMap<Integer, String> subMap(Integer fromKey, boolean fromInclusive, Integer toKey,
+                                                boolean toInclusive) {
+        if (descending ? fromKey.compareTo(toKey) < 0 : fromKey.compareTo(toKey) > 0) {
+            throw new IllegalArgumentException("fromKey > toKey");
+        }
+        return descending ? view(toKey, toInclusive, fromKey, fromInclusive)
+                          : view(fromKey, fromInclusive, toKey, toInclusive);
+    }
+
+    @Override
+    public NavigableMap<Integer, String> headMap(Integer toKey, boolean inclusive) {
+        return descending ? view(toKey, inclusive, hi, hiInclusive) : view(lo, loInclusive, toKey, inclusive);
+    }
+
+    @Override
+    public NavigableMap<Integer, String> tailMap(Integer fromKey, boolean inclusive) {
+        return descending ? view(lo, loInclusive, fromKey, inclusive) : view(fromKey, inclusive, hi, hiInclusive);
+    }
+
+    @Override
+    public SortedMap<Integer, String> subMap(Integer fromKey, Integer toKey) {
+        return subMap(fromKey, true, toKey, false);
+    }
+
+    @Override
+    public SortedMap<Integer, String> headMap(Integer toKey) {
+        return headMap(toKey, false);
+    }
+
+    @Override
+    public SortedMap<Integer, String> tailMap(Integer fromKey) {
+        return tailMap(fromKey, true);
+    }
+
+    /**
+     * Create a view with the given bounds in ascending key order, which must
+     * lie within the bounds of this view.
+     */
+    private BPlusTreeMap view(Integer newLo, boolean newLoInclusive, Integer newHi, boolean newHiInclusive) {
+        if (newLo != null && !inClosedRange(newLo)) {
+            throw new IllegalArgumentException("Key out of range: " + newLo);
+        }
+        if (newHi != null && !inClosedRange(newHi)) {
+            throw new IllegalArgumentException("Key out of range: " + newHi);
+        }
+        return new BPlusTreeMap(tree, newLo, newLoInclusive, newHi, newHiInclusive, descending);
+    }
+
+    private Map.Entry<Integer, String> removed(Map.Entry<Integer, String> entry) {
+        if (entry != null) {
+            tree.delete(entry.getKey());
+        }
+        return entry;
+    }
+
+    private static Integer keyOrNull(Map.Entry<Integer, String> entry) {
+        return entry == null ? null : entry.getKey();
+    }
+
+    private static Integer keyOrThrow(Map.Entry<Integer, String> entry) {
+        if (entry == null) {
+            throw new NoSuchElementException();
+        }
+        return entry.getKey();
+    }
+
+    /**
+     * Iterates over the entries of the view by walking the leaves in either
+     * direction, starting at the leaf of the first entry.
+     */
+    private class EntryIterator implements Iterator<Map.Entry<Integer, String>> {
+
+        /**
+         * Position of the next entry in ascending key order.
+         */
+        private int next;
+
+        private int remaining;
+
+        /**
+         * Leaf of the next entry, or {null} if it has to be located again.
+         */
+        private LeafNode leaf;
+
+        private int index;
+
+        private Integer lastKey;
+
+        EntryIterator() {
+            int from = from();
+            remaining = Math.max(0, to() - from);
+            next = descending ? from + remaining - 1 : from;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return remaining > 0;
+        }
+
+        @Override
+        public Map.Entry<Integer, String> next() {
+            if (remaining == 0) {
+                throw new NoSuchElementException();
+            }
+            if (leaf == null) {
+                BPlusTree.Position position = tree.locate(next);
+                leaf = position.leaf;
+                index = position.index;
+            }
+            // leaves may be empty while rebalancing is deferred
+            while (descending && index < 0) {
+                leaf = (LeafNode) leaf.getLeftLink();
+                index = leaf.size() - 1;
+            }
+            while (!descending && index >= leaf.size()) {
+                leaf = (LeafNode) leaf.getRightLink();
+                index = 0;
+            }
+            Map.Entry<Integer, String> entry =
+                    new AbstractMap.SimpleImmutableEntry<>(leaf.getKeys()[index], leaf.getValues()[index]);
+            index += descending ? -1 : 1;
+            next += descending ? -1 : 1;
+            remaining--;
+            lastKey = entry.getKey();
+            return entry;
+        }
+
+        @Override
+        public void remove() {
+            if (lastKey == null) {
+                throw new IllegalStateException();
+            }
+            tree.delete(lastKey);
+            lastKey = null;
+            // the deletion may have restructured the leaves, and in an
+            // ascending iteration the following entries moved one position
+            // down
+            if (!descending) {
+                next--;
+            }
+            leaf = null;
+        }
+    }
+
+    /**
+     * Key set of a map view.
+     */
+    private static class KeySet extends AbstractSet<Integer> implements NavigableSet<Integer> {
+
+        private final NavigableMap<Integer, String> map;
+
+        KeySet(NavigableMap<Integer, String> map) {
+            this.map = map;
+        }
+
+        @Override
+        public Iterator<Integer> iterator() {
+            Iterator<Map.Entry<Integer, String>> entries = map.entrySet().iterator();
+            return new Iterator<Integer>() {
+
+                @Override
+                public boolean hasNext() {
+                    return entries.hasNext();
+                }
+
+                @Override
+                public Integer next() {
+                    return entries.next().getKey();
+                }
+
+                @Override
+                public void remove() {
+                    entries.remove();
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return map.size();
+        }
+
+        @Override
+        public boolean contains(Object key) {
+            return map.containsKey(key);
+        }
+
+        @Override
+        public boolean remove(Object key) {
+            return map.remove(key) != null;
+        }
+
+        @Override
+        public Comparator<? super Integer> comparator() {
+            return map.comparator();
+        }
+
+        @Override
+        public Integer lower(Integer key) {
+            return map.lowerKey(key);
+        }
+
+        @Override
+        public Integer floor(Integer key) {
+            return map.floorKey(key);
+        }
+
+        @Override
+        public Integer ceiling(Integer key) {
+            return map.ceilingKey(key);
+        }
+
+        @Override
+        public Integer higher(Integer key) {
+            return map.higherKey(key);
+        }
+
+        @Override
+        public Integer first() {
+            return map.firstKey();
+        }
+
+        @Override
+        public Integer last() {
+            return map.lastKey();
+        }
+
+        @Override
+        public Integer pollFirst() {
+            return keyOrNull(map.pollFirstEntry());
+        }
+
+        @Override
+        public Integer pollLast() {
+            return keyOrNull(map.pollLastEntry());
+        }
+
+        @Override
+        public NavigableSet<Integer> descendingSet() {
+            return new KeySet(map.descendingMap());
+        }
+
+        @Override
+        public Iterator<Integer> descendingIterator() {
+            return descendingSet().iterator();
+        }
+
+        @Override
+        public NavigableSet<Integer> subSet(Integer fromElement, boolean fromInclusive, Integer toElement,
+                                           boolean toInclusive) {
+            return new KeySet(map.subMap(fromElement, fromInclusive, toElement, toInclusive));
+        }
+
+        @Override
+        public NavigableSet<Integer> headSet(Integer toElement, boolean inclusive) {
+            return new KeySet(map.headMap(toElement, inclusive));
+        }
+
+        @Override
+        public NavigableSet<Integer> tailSet(Integer fromElement, boolean inclusive) {
+            return new KeySet(map.tailMap(fromElement, inclusive));
+        }
+
+        @Override
+        public SortedSet<Integer> subSet(Integer fromElement, Integer toElement) {
+            return subSet(fromElement, true, toElement, false);
+        }
+
+        @Override
+        public SortedSet<Integer> headSet(Integer toElement) {
+            return headSet(toElement, false);
+        }
+
+        @Override
+        public SortedSet<Integer> tailSet(Integer fromElement) {
+            return tailSet(fromElement, true);
+        }
+    }
+}
@@ -0,0 +1,296 @@
+package de.tuberlin.dima.dbt.exercises.bplustree;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.zip.CRC32C;
+
+/**
+ * Binary format for B+ trees.
+ * <p>
+ * A serialized tree starts with a header that holds a magic number, the
+ * format version and the node capacities, followed by one record per node in
+ * post-order, i.e., every inner node directly follows its last child. A
+ * record consists of the length of its payload, the payload, and the CRC32C
+ * checksum of the payload. The payload holds the node type, the number of
+ * keys, the keys, and for leaves the UTF-8 encoded values. A record with an
+ * empty payload ends the tree.
+ * <p>
+ * Because of the post-order, the reader only keeps the completed nodes that
+ * still wait for their parent on a stack, and reads one record at a time.
+ */
+public final class BPlusTreeSerializer {
+
+    static final int MAGIC = 0x42505431;
+
+    static final int VERSION = 1;
+
+    private static final int HEADER_BYTES = 5 * Integer.BYTES;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Upper bound for the payload of a record, so that a corrupted length
+     * cannot make the reader allocate arbitrary amounts of memory.
+     */
+    static final int MAX_RECORD_BYTES = 1 << 28;
+
+    static final byte LEAF = 0;
+
+    static final byte INNER = 1;
+
+    private BPlusTreeSerializer() {
+    }
+
+    /**
+     * Write the tree to the given file, replacing its contents.
+     */
+    public static void save(BPlusTree tree, Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                                    StandardOpenOption.TRUNCATE_EXISTING)) {
+            write(tree, channel);
+            channel.force(true);
+        }
+    }
+
+    /**
+     * Read a tree from the given file.
+     */
+    public static BPlusTree load(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return read(channel);
+        }
+    }
+
+    /**
+     * Write the tree to the channel. The channel is not closed.
+     */
+    public static void write(BPlusTree tree, WritableByteChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        header.putInt(MAGIC).putInt(VERSION).putInt(tree.leafCapacity()).putInt(tree.innerCapacity());
+        header.putInt(checksum(header.array(), 0, HEADER_BYTES - Integer.BYTES));
+        writeFully(channel, header.flip());
+
+        // iterative post-order traversal, the stacks hold the path to the
+        // current node and the index of the next child to visit
+        Deque<Node> path = new ArrayDeque<>();
+        Deque<Integer> nextChild = new ArrayDeque<>();
+        path.push(tree.rootNode());
+        nextChild.push(0);
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        while (!path.isEmpty()) {
+            Node node = path.peek();
+            if (node instanceof InnerNode) {
+                InnerNode innerNode = (InnerNode) node;
+                int child = nextChild.pop();
+                if (child <= innerNode.size()) {
+                    nextChild.push(child + 1);
+                    path.push(innerNode.getChildren()[child]);
+                    nextChild.push(0);
+                    continue;
+                }
+            } else {
+                nextChild.pop();
+            }
+            path.pop();
+            payload.reset();
+            encode(node, new DataOutputStream(payload));
+            writeRecord(channel, payload.toByteArray());
+        }
+        writeRecord(channel, new byte[0]);
+    }
+
+    /**
+     * Read a tree from the channel. The channel is not closed.
+     *
+     * @throws IOException If the data is truncated, has an unknown format
+     *                     or version, or does not match its checksums.
+     */
+    public static BPlusTree read(ReadableByteChannel channel) throws IOException {
+        RecordReader reader = new RecordReader(channel);
+        ByteBuffer header = reader.read(HEADER_BYTES);
+        if (header.getInt(0) != MAGIC) {
+            throw new IOException("Not a serialized B+ tree");
+        }
+        if (header.getInt(4) != VERSION) {
+            throw new IOException("Unsupported format version " + header.getInt(4));
+        }
+        if (header.getInt(16) != checksum(header.array(), 0, HEADER_BYTES - Integer.BYTES)) {
+            throw new IOException("Header checksum mismatch");
+        }
+        int leafCapacity = header.getInt(8);
+        int innerCapacity = header.getInt(12);
+        if (leafCapacity < 2 || innerCapacity < 2) {
+            throw new IOException("Invalid node capacities " + leafCapacity + "/" + innerCapacity);
+        }
+
+        // completed nodes whose parent has not been read yet
+        Deque<Node> completed = new ArrayDeque<>();
+        byte[] payload;
+        while ((payload = reader.readRecord()).length > 0) {
+            completed.push(decode(ByteBuffer.wrap(payload), completed, leafCapacity, innerCapacity));
+        }
+        if (completed.size() != 1) {
+            throw new IOException("Expected a single root but found " + completed.size() + " nodes");
+        }
+        return new BPlusTree(completed.pop(), leafCapacity, innerCapacity);
+    }
+
+    static void encode(Node node, DataOutputStream out) throws IOException {
+        boolean leaf = node instanceof LeafNode;
+        int size = leaf ? ((LeafNode) node).size() : ((InnerNode) node).size();
+        out.writeByte(leaf ? LEAF : INNER);
+        out.writeInt(size);
+        for (int i = 0; i < size; i++) {
+            out.writeInt(node.getKeys()[i]);
+        }
+        if (leaf) {
+            for (int i = 0; i < size; i++) {
+                byte[] value = ((LeafNode) node).getValues()[i].getBytes(StandardCharsets.UTF_8);
+                out.writeInt(value.length);
+                out.write(value);
+            }
+        }
+        out.flush();
+    }
+
+    private static Node decode(ByteBuffer payload, Deque<Node> completed, int leafCapacity, int innerCapacity)
+            throws IOException {
+        require(payload, 1 + Integer.BYTES);
+        byte type = payload.get();
+        int size = payload.getInt();
+        if (type != LEAF && type != INNER) {
+            throw new IOException("Unknown node type " + type);
+        }
+        if (size < 0 || size > (type == LEAF ? leafCapacity : innerCapacity)) {
+            throw new IOException("Invalid node size " + size);
+        }
+        Integer[] keys = decodeKeys(payload, size);
+        if (type == LEAF) {
+            return new LeafNode(keys, decodeValues(payload, size), leafCapacity);
+        }
+        if (completed.size() < size + 1) {
+            throw new IOException("Inner node with " + (size + 1) + " children but only "
+                                          + completed.size() + " nodes left");
+        }
+        Node[] children = new Node[size + 1];
+        for (int i = size; i >= 0; i--) {
+            children[i] = completed.pop();
+        }
+        return new InnerNode(keys, children, innerCapacity);
+    }
+
+    static Integer[] decodeKeys(ByteBuffer payload, int size) throws IOException {
+        require(payload, (long) size * Integer.BYTES);
+        Integer[] keys = new Integer[size];
+        for (int i = 0; i < size; i++) {
+            keys[i] = payload.getInt();
+        }
+        return keys;
+    }
+
+    static String[] decodeValues(ByteBuffer payload, int size) throws IOException {
+        String[] values = new String[size];
+        for (int i = 0; i < size; i++) {
+            require(payload, Integer.BYTES);
+            int length = payload.getInt();
+            if (length < 0) {
+                throw new IOException("Invalid value length " + length);
+            }
+            require(payload, length);
+            byte[] value = new byte[length];
+            payload.get(value);
+            values[i] = new String(value, StandardCharsets.UTF_8);
+        }
+        return values;
+    }
+
+    /**
+     * A record can pass its checksum and still be malformed, e.g., if it was
+     * written by a faulty version. Check the remaining bytes before reading
+     * them, so that such a record causes an {IOException}.
+     */
+    static void require(ByteBuffer payload, long bytes) throws IOException {
+        if (payload.remaining() < bytes) {
+            throw new IOException("Node record ends after " + payload.position() + " bytes, "
+                                          + bytes + " more bytes expected");
+        }
+    }
+
+    private static void writeRecord(WritableByteChannel channel, byte[] payload) throws IOException {
+        if (payload.length > MAX_RECORD_BYTES) {
+            throw new IOException("Node exceeds the maximum record size of " + MAX_RECORD_BYTES + " bytes");
+        }
+        ByteBuffer record = ByteBuffer.allocate(payload.length + 2 * Integer.BYTES);
+        record.putInt(payload.length).put(payload).putInt(checksum(payload, 0, payload.length));
+        writeFully(channel, record.flip());
+    }
+
+    private static void writeFully(WritableByteChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    static int checksum(byte[] bytes, int offset, int length) {
+        CRC32C crc = new CRC32C();
+        crc.update(bytes, offset, length);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Reads records through a fixed-size buffer.
+     */
+    private static class RecordReader {
+
+        private final ReadableByteChannel channel;
+
+        private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE).flip();
+
+        RecordReader(ReadableByteChannel channel) {
+            this.channel = channel;
+        }
+
+        byte[] readRecord() throws IOException {
+            int length = read(Integer.BYTES).getInt();
+            if (length < 0 || length > MAX_RECORD_BYTES) {
+                throw new IOException("Invalid record length " + length);
+            }
+            byte[] payload = read(length).array();
+            if (read(Integer.BYTES).getInt() != checksum(payload, 0, length)) {
+                throw new IOException("Record checksum mismatch");
+            }
+            return payload;
+        }
+
+        /**
+         * Read exactly the given number of bytes.
+         */
+        ByteBuffer read(int length) throws IOException {
+            ByteBuffer result = ByteBuffer.allocate(length);
+            while (result.hasRemaining()) {
+                if (!buffer.hasRemaining()) {
+                    buffer.clear();
+                    int read = channel.read(buffer);
+                    buffer.flip();
+                    if (read < 0) {
+                        throw new IOException("Unexpected end of stream");
+                    }
+                }
+                int chunk = Math.min(result.remaining(), buffer.remaining());
+                result.put(buffer.array(), buffer.position(), chunk);
+                buffer.position(buffer.position() + chunk);
+            }
+            return result.flip();
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package de.tuberlin.dima.dbt.exercises.bplustree;
+
+/**
+ * Bloom filter over integer keys.
+ * <p>
+ * The bit positions of a key are derived from two halves of one 64-bit hash
+ * by double hashing. With {bitsPerKey} bits per key and the optimal number
+ * of hash functions, about {0.6185^bitsPerKey} of the keys that were not
+ * added are reported as possibly contained, e.g., 1% for 10 bits per key.
+ */
+final class BloomFilter {
+
+    private final long[] bits;
+
+    private final int size;
+
+    private final int hashes;
+
+    BloomFilter(int keys, int bitsPerKey) {
+        assert bitsPerKey > 0;
+        this.size = Math.max(Long.SIZE, keys * bitsPerKey);
+        this.bits = new long[(size + Long.SIZE - 1) / Long.SIZE];
+        // ln(2) * bits per key minimizes the false positive rate
+        this.hashes = Math.max(1, (int) Math.round(bitsPerKey * 0.69));
+    }
+
+    void add(int key) {
+        long hash = hash(key);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 0; i < hashes; i++) {
+            int bit = Math.floorMod(h1 + i * h2, size);
+            bits[bit >>> 6] |= 1L << bit;
+        }
+    }
+
+    /**
+     * @return {false} if the key has certainly not been added.
+     */
+    boolean mightContain(int key) {
+        long hash = hash(key);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 0; i < hashes; i++) {
+            int bit = Math.floorMod(h1 + i * h2, size);
+            if ((bits[bit >>> 6] & 1L << bit) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Finalizer of SplitMix64, which spreads consecutive keys over all bits.
+     */
+    private static long hash(int key) {
+        long z = key * 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -0,0 +1,160 @@
+package de.tuberlin.dima.dbt.exercises.bplustree;
+
+import java.util.AbstractMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.function.BiConsumer;
+
+/**
+ * B+ tree with an in-memory write buffer.
+ * <p>
+ * Inserts and deletes are first recorded in a sorted buffer; a delete is
+ * recorded as a tombstone. Once the buffer holds {bufferSize} keys it is
+ * merged into the tree in ascending key order (see {BPlusTree.merge}), so
+ * that a burst of random writes turns into one pass over the leaves it
+ * touches instead of one descent per key. Lookups and scans consult the
+ * buffer before the tree.
+ * <p>
+ * As with {BPlusTree.put}, inserting an existing key replaces its value.
+ * This class is meant for a single writer and is not thread-safe.
+ */
+public class BufferedBPlusTree {
+
+    /**
+     * Marks a deleted key in the buffer. Compared by identity.
+     */
+    private static final String TOMBSTONE = new String("");
+
+    /**
+     * Position in the buffer while merging it into a scan.
+     */
+    private static class BufferCursor {
+
+        private final Iterator<Map.Entry<Integer, String>> it;
+
+        Map.Entry<Integer, String> entry;
+
+        BufferCursor(Iterator<Map.Entry<Integer, String>> it) {
+            this.it = it;
+            advance();
+        }
+
+        void advance() {
+            entry = it.hasNext() ? it.next() : null;
+        }
+    }
+
+    private final BPlusTree tree;
+
+    private final int bufferSize;
+
+    private final NavigableMap<Integer, String> buffer = new TreeMap<>();
+
+    public BufferedBPlusTree(BPlusTree tree, int bufferSize) {
+        assert bufferSize > 0;
+        this.tree = tree;
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * Lookup the value stored under the given key.
+     *
+     * @return The stored value, or {null} if the key does not exist.
+     */
+    public String lookup(Integer key) {
+        String value = buffer.get(key);
+        if (value != null) {
+            return value == TOMBSTONE ? null : value;
+        }
+        return tree.lookup(key);
+    }
+
+    /**
+     * Insert the key/value pair, replacing an existing value for the key.
+     */
+    public void insert(Integer key, String value) {
+        // a null value would hide the key from lookup and delete it on flush
+        buffer.put(key, Objects.requireNonNull(value));
+        flushIfFull();
+    }
+
+    /**
+     * Delete the key/value pair.
+     *
+     * @return The original value, or {null} if the key does not exist.
+     */
+    public String delete(Integer key) {
+        String value = lookup(key);
+        if (value != null) {
+            buffer.put(key, TOMBSTONE);
+            flushIfFull();
+        }
+        return value;
+    }
+
+    /**
+     * Pass all key/value pairs with {from <= key < to} to the consumer in
+     * ascending key order.
+     */
+    public void scan(Integer from, Integer to, BiConsumer<Integer, String> consumer) {
+        NavigableMap<Integer, String> range = buffer;
+        if (from != null) {
+            range = range.tailMap(from, true);
+        }
+        if (to != null) {
+            range = range.headMap(to, false);
+        }
+        BufferCursor buffered = new BufferCursor(range.entrySet().iterator());
+        tree.scan(from, to, (key, value) -> {
+            while (buffered.entry != null && buffered.entry.getKey() < key) {
+                emit(buffered.entry, consumer);
+                buffered.advance();
+            }
+            if (buffered.entry != null && buffered.entry.getKey().equals(key)) {
+                // the buffered write supersedes the value in the tree
+                emit(buffered.entry, consumer);
+                buffered.advance();
+            } else {
+                consumer.accept(key, value);
+            }
+        });
+        while (buffered.entry != null) {
+            emit(buffered.entry, consumer);
+            buffered.advance();
+        }
+    }
+
+    /**
+     * Merge all buffered writes into the tree.
+     */
+    public void flush() {
+        tree.merge(buffer.entrySet().stream()
+                         .map(entry -> new AbstractMap.SimpleImmutableEntry<>(
+                                 entry.getKey(), entry.getValue() == TOMBSTONE ? null : entry.getValue()))
+                         .iterator());
+        buffer.clear();
+    }
+
+    /**
+     * @return The number of keys with writes that have not been merged into
+     * the tree yet.
+     */
+    public int bufferedKeys() {
+        return buffer.size();
+    }
+
+    private void flushIfFull() {
+        if (buffer.size() >= bufferSize) {
+            flush();
+        }
+    }
+
+    private static void emit(Map.Entry<Integer, String> entry, BiConsumer<Integer, String> consumer) {
+        if (entry.getValue() != TOMBSTONE) {
+            consumer.accept(entry.getKey(), entry.getValue());
+        }
+    }
+}
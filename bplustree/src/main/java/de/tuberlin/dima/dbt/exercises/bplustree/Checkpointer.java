@@ -0,0 +1,284 @@
+package de.tuberlin.dima.dbt.exercises.bplustree;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Incremental, copy-on-write checkpoints of a B+ tree.
+ * <p>
+ * The checkpoint file starts with two root slots, followed by node pages.
+ * A checkpoint appends a new page for every node that was modified since the
+ * previous checkpoint (see {Node.dirty}) and for every ancestor of such a
+ * node, because the page of a child is referenced by its parent. The tree
+ * marks the path to every modified node (see {Node.dirtyBelow}), so a
+ * checkpoint only visits these paths and their children instead of the
+ * whole tree. Pages of
+ * earlier checkpoints are never overwritten. Once the new pages are on disk,
+ * the root page is written into the older of the two slots, so that a crash
+ * during a checkpoint leaves the previous checkpoint intact.
+ * <p>
+ * A page has the layout of a record of the {BPlusTreeSerializer}, except
+ * that inner nodes store the positions of their children after their keys.
+ * <p>
+ * Pages that were replaced by later checkpoints are not reclaimed; a file
+ * that has grown too large can be replaced by a new one with {create}. The
+ * page positions are stored in the nodes, so a tree must only be
+ * checkpointed into one file at a time.
+ */
+public class Checkpointer implements AutoCloseable {
+
+    private static final int MAGIC = 0x42504350;
+
+    /**
+     * Magic number, sequence number, root page, both capacities and the
+     * checksum of the slot.
+     */
+    private static final int SLOT_BYTES = 4 + 8 + 8 + 4 + 4 + 4;
+
+    private static final int HEADER_BYTES = 2 * SLOT_BYTES;
+
+    private final BPlusTree tree;
+
+    private final FileChannel channel;
+
+    /**
+     * Sequence number of the last checkpoint.
+     */
+    private long sequence;
+
+    /**
+     * End of the written pages.
+     */
+    private long end;
+
+    private Checkpointer(BPlusTree tree, FileChannel channel, long sequence, long end) {
+        this.tree = tree;
+        this.channel = channel;
+        this.sequence = sequence;
+        this.end = end;
+    }
+
+    /**
+     * Start a new checkpoint file for the tree, replacing an existing file.
+     * The first checkpoint writes all nodes.
+     */
+    public static Checkpointer create(BPlusTree tree, Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                                               StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        forget(tree.rootNode());
+        return new Checkpointer(tree, channel, 0, HEADER_BYTES);
+    }
+
+    /**
+     * Load the tree of the latest complete checkpoint in the file. Further
+     * checkpoints are appended to the same file.
+     */
+    public static Checkpointer open(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            ByteBuffer latest = null;
+            for (int slot = 0; slot < 2; slot++) {
+                ByteBuffer buffer = readFully(channel, (long) slot * SLOT_BYTES, SLOT_BYTES);
+                if (buffer != null && isValidSlot(buffer)
+                        && (latest == null || buffer.getLong(4) > latest.getLong(4))) {
+                    latest = buffer;
+                }
+            }
+            if (latest == null) {
+                throw new IOException("No complete checkpoint in " + path);
+            }
+            int leafCapacity = latest.getInt(20);
+            int innerCapacity = latest.getInt(24);
+            Node root = readNode(channel, latest.getLong(12), leafCapacity, innerCapacity);
+            BPlusTree tree = new BPlusTree(root, leafCapacity, innerCapacity);
+            return new Checkpointer(tree, channel, latest.getLong(4), channel.size());
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public BPlusTree tree() {
+        return tree;
+    }
+
+    /**
+     * Write all nodes that changed since the last checkpoint and make the
+     * current root the latest checkpoint.
+     *
+     * @return The number of pages that were written.
+     */
+    public int checkpoint() throws IOException {
+        ByteArrayOutputStream pages = new ByteArrayOutputStream();
+        List<Node> written = new ArrayList<>();
+        try {
+            write(tree.rootNode(), pages, written);
+            channel.write(ByteBuffer.wrap(pages.toByteArray()), end);
+            channel.force(false);
+            writeSlot(sequence + 1, tree.rootNode().page);
+        } catch (IOException | RuntimeException e) {
+            // the pages were not committed, write the nodes again next time
+            for (Node node : written) {
+                node.page = -1;
+            }
+            throw e;
+        }
+        for (Node node : written) {
+            node.dirty = false;
+        }
+        sequence++;
+        end += pages.size();
+        return written.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Append a page for the node to the buffer if the node or one of its
+     * descendants changed. Only the children that are marked are visited.
+     * <p>
+     * The marks are cleared right away: if the checkpoint fails, every node
+     * that got a page is written again, and so are its ancestors, which got
+     * pages as well.
+     *
+     * @return Whether the node got a new page.
+     */
+    private boolean write(Node node, ByteArrayOutputStream pages, List<Node> written) throws IOException {
+        boolean changed = node.dirty || node.page < 0;
+        if (node instanceof InnerNode) {
+            InnerNode innerNode = (InnerNode) node;
+            for (int i = 0; i <= innerNode.size(); i++) {
+                Node child = innerNode.getChildren()[i];
+                if (child.dirty || child.page < 0 || child.dirtyBelow) {
+                    changed |= write(child, pages, written);
+                }
+            }
+        }
+        node.dirtyBelow = false;
+        if (!changed) {
+            return false;
+        }
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(payload);
+        BPlusTreeSerializer.encode(node, out);
+        if (node instanceof InnerNode) {
+            InnerNode innerNode = (InnerNode) node;
+            for (int i = 0; i <= innerNode.size(); i++) {
+                out.writeLong(innerNode.getChildren()[i].page);
+            }
+        }
+        out.flush();
+        byte[] bytes = payload.toByteArray();
+        node.page = end + pages.size();
+        written.add(node);
+        DataOutputStream record = new DataOutputStream(pages);
+        record.writeInt(bytes.length);
+        record.write(bytes);
+        record.writeInt(BPlusTreeSerializer.checksum(bytes, 0, bytes.length));
+        record.flush();
+        return true;
+    }
+
+    private void writeSlot(long sequence, long rootPage) throws IOException {
+        ByteBuffer slot = ByteBuffer.allocate(SLOT_BYTES);
+        slot.putInt(MAGIC).putLong(sequence).putLong(rootPage)
+            .putInt(tree.leafCapacity()).putInt(tree.innerCapacity());
+        slot.putInt(BPlusTreeSerializer.checksum(slot.array(), 0, SLOT_BYTES - Integer.BYTES));
+        slot.flip();
+        long position = (sequence % 2) * SLOT_BYTES;
+        while (slot.hasRemaining()) {
+            position += channel.write(slot, position);
+        }
+        channel.force(false);
+    }
+
+    private static boolean isValidSlot(ByteBuffer slot) {
+        return slot.getInt(0) == MAGIC
+                && slot.getInt(SLOT_BYTES - Integer.BYTES)
+                == BPlusTreeSerializer.checksum(slot.array(), 0, SLOT_BYTES - Integer.BYTES);
+    }
+
+    private static Node readNode(FileChannel channel, long page, int leafCapacity, int innerCapacity)
+            throws IOException {
+        ByteBuffer length = readFully(channel, page, Integer.BYTES);
+        if (length == null || length.getInt(0) < 0 || length.getInt(0) > BPlusTreeSerializer.MAX_RECORD_BYTES) {
+            throw new IOException("Invalid page at " + page);
+        }
+        int size = length.getInt(0);
+        ByteBuffer record = readFully(channel, page + Integer.BYTES, size + Integer.BYTES);
+        if (record == null || record.getInt(size) != BPlusTreeSerializer.checksum(record.array(), 0, size)) {
+            throw new IOException("Checksum mismatch in page at " + page);
+        }
+        // do not read into the checksum
+        record.limit(size);
+        BPlusTreeSerializer.require(record, 1 + Integer.BYTES);
+        byte type = record.get();
+        int keyCount = record.getInt();
+        if (type != BPlusTreeSerializer.LEAF && type != BPlusTreeSerializer.INNER) {
+            throw new IOException("Unknown node type " + type + " in page at " + page);
+        }
+        if (keyCount < 0 || keyCount > (type == BPlusTreeSerializer.LEAF ? leafCapacity : innerCapacity)) {
+            throw new IOException("Invalid node size " + keyCount + " in page at " + page);
+        }
+        Integer[] keys = BPlusTreeSerializer.decodeKeys(record, keyCount);
+        if (type == BPlusTreeSerializer.LEAF) {
+            LeafNode leaf = new LeafNode(keys, BPlusTreeSerializer.decodeValues(record, keyCount), leafCapacity);
+            loaded(leaf, page);
+            return leaf;
+        }
+        BPlusTreeSerializer.require(record, (long) (keyCount + 1) * Long.BYTES);
+        long[] childPages = new long[keyCount + 1];
+        for (int i = 0; i <= keyCount; i++) {
+            childPages[i] = record.getLong();
+        }
+        Node[] children = new Node[keyCount + 1];
+        for (int i = 0; i <= keyCount; i++) {
+            children[i] = readNode(channel, childPages[i], leafCapacity, innerCapacity);
+        }
+        InnerNode innerNode = new InnerNode(keys, children, innerCapacity);
+        loaded(innerNode, page);
+        return innerNode;
+    }
+
+    private static void loaded(Node node, long page) {
+        node.page = page;
+        node.dirty = false;
+    }
+
+    /**
+     * Mark all nodes as not written yet.
+     */
+    private static void forget(Node node) {
+        node.page = -1;
+        if (node instanceof InnerNode) {
+            InnerNode innerNode = (InnerNode) node;
+            for (int i = 0; i <= innerNode.size(); i++) {
+                forget(innerNode.getChildren()[i]);
+            }
+        }
+    }
+
+    /**
+     * @return The bytes at the given position, or {null} if the file ends
+     * before.
+     */
+    private static ByteBuffer readFully(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                return null;
+            }
+        }
+        return buffer.flip();
+    }
+}
@@ -0,0 +1,199 @@
+package de.tuberlin.dima.dbt.exercises.bplustree;
+
+import java.util.NoSuchElementException;
+
+/**
+ * Reusable position in a B+ tree.
+ * <p>
+ * A cursor points to a slot of a leaf and moves along the links between the
+ * leaves. None of its methods allocate, so a single cursor can serve any
+ * number of scans, e.g.:
+ * <pre>
+ * for (boolean found = cursor.seek(from); found &amp;&amp; cursor.key() &lt; to; found = cursor.next()) {
+ *     process(cursor.key(), cursor.value());
+ * }
+ * </pre>
+ * Any modification of the tree invalidates the position; the cursor must be
+ * positioned again with one of the seek methods afterwards. A cursor is not
+ * thread-safe, but every thread can use its own cursor on the same tree as
+ * long as the tree is not modified.
+ */
+public class Cursor {
+
+    private final BPlusTree tree;
+
+    /**
+     * Current leaf, or {null} if the cursor is not positioned.
+     */
+    private LeafNode leaf;
+
+    private int index;
+
+    Cursor(BPlusTree tree) {
+        this.tree = tree;
+    }
+
+    /**
+     * Position the cursor at the smallest key that is not smaller than the
+     * given key.
+     *
+     * @return Whether such a key exists.
+     */
+    public boolean seek(int key) {
+        Node node = tree.rootNode();
+        while (node instanceof InnerNode) {
+            InnerNode innerNode = (InnerNode) node;
+            node = innerNode.getChildren()[countNotGreater(innerNode.getKeys(), innerNode.size(), key)];
+        }
+        leaf = (LeafNode) node;
+        index = countSmaller(leaf.getKeys(), leaf.size(), key);
+        return skipForward();
+    }
+
+    /**
+     * Position the cursor at the smallest key of the tree.
+     *
+     * @return Whether the tree is not empty.
+     */
+    public boolean seekFirst() {
+        Node node = tree.rootNode();
+        while (node instanceof InnerNode) {
+            node = ((InnerNode) node).getChildren()[0];
+        }
+        leaf = (LeafNode) node;
+        index = 0;
+        return skipForward();
+    }
+
+    /**
+     * Position the cursor at the largest key of the tree.
+     *
+     * @return Whether the tree is not empty.
+     */
+    public boolean seekLast() {
+        Node node = tree.rootNode();
+        while (node instanceof InnerNode) {
+            InnerNode innerNode = (InnerNode) node;
+            node = innerNode.getChildren()[innerNode.size()];
+        }
+        leaf = (LeafNode) node;
+        index = leaf.size() - 1;
+        return skipBackward();
+    }
+
+    /**
+     * Move to the next larger key.
+     *
+     * @return Whether the cursor is still positioned.
+     */
+    public boolean next() {
+        if (leaf == null) {
+            return false;
+        }
+        index++;
+        return skipForward();
+    }
+
+    /**
+     * Move to the next smaller key.
+     *
+     * @return Whether the cursor is still positioned.
+     */
+    public boolean prev() {
+        if (leaf == null) {
+            return false;
+        }
+        index--;
+        return skipBackward();
+    }
+
+    /**
+     * @return Whether the cursor points to a key/value pair.
+     */
+    public boolean isValid() {
+        return leaf != null;
+    }
+
+    public int key() {
+        checkValid();
+        return leaf.getKeys()[index];
+    }
+
+    public String value() {
+        checkValid();
+        return leaf.getValues()[index];
+    }
+
+    /**
+     * Forget the position, e.g., so that the cursor does not keep a leaf
+     * reachable that has been removed from the tree.
+     */
+    public void reset() {
+        leaf = null;
+        index = 0;
+    }
+
+    /**
+     * Move to the next leaf while the index is past the end of the current
+     * one. Leaves may be empty while rebalancing is deferred.
+     */
+    private boolean skipForward() {
+        while (index >= leaf.size()) {
+            leaf = (LeafNode) leaf.getRightLink();
+            index = 0;
+            if (leaf == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean skipBackward() {
+        while (index < 0) {
+            leaf = (LeafNode) leaf.getLeftLink();
+            if (leaf == null) {
+                index = 0;
+                return false;
+            }
+            index = leaf.size() - 1;
+        }
+        return true;
+    }
+
+    private void checkValid() {
+        if (leaf == null) {
+            throw new NoSuchElementException("Cursor is not positioned");
+        }
+    }
+
+    /**
+     * Binary search on the primitive key, which avoids boxing it.
+     */
+    private static int countSmaller(Integer[] keys, int size, int key) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (keys[mid] < key) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private static int countNotGreater(Integer[] keys, int size, int key) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (keys[mid] <= key) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+}
@@ -0,0 +1,140 @@
+package de.tuberlin.dima.dbt.exercises.bplustree;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Read-only copy of a B+ tree with a cache-conscious layout.
+ * <p>
+ * The keys are stored as primitive ints in one contiguous sorted array that
+ * is divided into blocks of {BLOCK_SIZE} keys, i.e., one 64 byte cache line
+ * per block. The first key of every block is copied into a static search
+ * tree in Eytzinger (breadth-first) layout, so that the top levels of the
+ * search share a few cache lines and every step of the descent moves to a
+ * predictable position instead of following a pointer. A lookup descends the
+ * search tree to find the block and then scans a single cache line.
+ */
+public class FrozenBPlusTree {
+
+    /**
+     * Number of int keys per cache line.
+     */
+    static final int BLOCK_SIZE = 16;
+
+    private final int[] keys;
+
+    private final String[] values;
+
+    /**
+     * First key of every block in Eytzinger layout; index 0 is unused.
+     */
+    private final int[] index;
+
+    /**
+     * Block number of every entry in {index}.
+     */
+    private final int[] indexBlocks;
+
+    private FrozenBPlusTree(int[] keys, String[] values) {
+        this.keys = keys;
+        this.values = values;
+        int blocks = (keys.length + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        this.index = new int[blocks + 1];
+        this.indexBlocks = new int[blocks + 1];
+        buildIndex(0, 1);
+    }
+
+    /**
+     * Create a read-only copy of the current contents of the tree.
+     */
+    public static FrozenBPlusTree of(BPlusTree tree) {
+        List<Integer> keyList = new ArrayList<>();
+        List<String> valueList = new ArrayList<>();
+        tree.scan(null, null, (key, value) -> {
+            keyList.add(key);
+            valueList.add(value);
+        });
+        int[] keys = new int[keyList.size()];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = keyList.get(i);
+        }
+        return new FrozenBPlusTree(keys, valueList.toArray(new String[0]));
+    }
+
+    /**
+     * Fill the Eytzinger array by an in-order traversal of the implicit tree.
+     *
+     * @return The next block number to place.
+     */
+    private int buildIndex(int block, int position) {
+        if (position < index.length) {
+            block = buildIndex(block, 2 * position);
+            index[position] = keys[block * BLOCK_SIZE];
+            indexBlocks[position] = block;
+            block = buildIndex(block + 1, 2 * position + 1);
+        }
+        return block;
+    }
+
+    /**
+     * Lookup the value stored under the given key.
+     *
+     * @return The stored value, or {null} if the key does not exist.
+     */
+    public String lookup(int key) {
+        int block = findBlock(key);
+        if (block < 0) {
+            return null;
+        }
+        int from = block * BLOCK_SIZE;
+        int to = Math.min(from + BLOCK_SIZE, keys.length);
+        int position = from + countSmaller(key, from, to);
+        return position < to && keys[position] == key ? values[position] : null;
+    }
+
+    /**
+     * Build a learned index over the keys of this tree, which predicts the
+     * position of a key with an error of at most {maxError} positions
+     * instead of searching for it. The index shares the keys and values
+     * with this tree.
+     */
+    public LearnedIndex learnedIndex(int maxError) {
+        return new LearnedIndex(keys, values, maxError);
+    }
+
+    /**
+     * @return The number of keys in the tree.
+     */
+    public int size() {
+        return keys.length;
+    }
+
+    /**
+     * Find the last block whose first key is not greater than the key.
+     *
+     * @return The block number, or -1 if the key is smaller than all keys.
+     */
+    int findBlock(int key) {
+        int position = 1;
+        while (position < index.length) {
+            position = 2 * position + (index[position] <= key ? 1 : 0);
+        }
+        // undo the right turns after the last left turn, which went to the
+        // first block with a larger first key
+        position >>= Integer.numberOfTrailingZeros(~position) + 1;
+        int next = position == 0 ? index.length - 1 : indexBlocks[position];
+        return next - 1;
+    }
+
+    /**
+     * Count the keys in {keys[from..to)} that are smaller than the key. The
+     * loop has no data-dependent branches.
+     */
+    int countSmaller(int key, int from, int to) {
+        int count = 0;
+        for (int i = from; i < to; i++) {
+            count += keys[i] < key ? 1 : 0;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,100 @@
+package de.tuberlin.dima.dbt.exercises.bplustree;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * B+ tree with secondary indexes on attributes of its values.
+ * <p>
+ * All modifications must go through this class, which updates the indexes
+ * with the old and the new value of every modified key. As with
+ * {BPlusTree.put}, inserting an existing key replaces its value. If an
+ * extractor fails, the modification is undone and neither the tree nor
+ * the indexes change.
+ */
+public class IndexedBPlusTree {
+
+    private final BPlusTree tree;
+
+    private final List<SecondaryIndex> indexes = new ArrayList<>();
+
+    public IndexedBPlusTree(BPlusTree tree) {
+        this.tree = tree;
+    }
+
+    /**
+     * Create an index on the attribute that the extractor derives from a
+     * value, or {null} for values that are not indexed. The index is built
+     * from the current content of the tree.
+     */
+    public SecondaryIndex createIndex(Function<String, Integer> extractor) {
+        SecondaryIndex index = new SecondaryIndex(tree, extractor);
+        index.build();
+        indexes.add(index);
+        return index;
+    }
+
+    public String lookup(Integer key) {
+        return tree.lookup(key);
+    }
+
+    public void insert(Integer key, String value) {
+        put(key, value);
+    }
+
+    /**
+     * @see BPlusTree#put
+     */
+    public String put(Integer key, String value) {
+        Integer[] newAttributes = attributes(value);
+        String previous = tree.put(key, value);
+        Integer[] oldAttributes;
+        try {
+            oldAttributes = attributes(previous);
+        } catch (Throwable e) {
+            // leave the tree as it was, the indexes have not been touched
+            if (previous == null) {
+                tree.delete(key);
+            } else {
+                tree.put(key, previous);
+            }
+            throw e;
+        }
+        update(key, oldAttributes, newAttributes);
+        return previous;
+    }
+
+    public String delete(Integer key) {
+        String deleted = tree.delete(key);
+        if (deleted != null) {
+            Integer[] oldAttributes;
+            try {
+                oldAttributes = attributes(deleted);
+            } catch (Throwable e) {
+                tree.put(key, deleted);
+                throw e;
+            }
+            update(key, oldAttributes, new Integer[indexes.size()]);
+        }
+        return deleted;
+    }
+
+    /**
+     * Run the extractors of all indexes on the value before any index is
+     * changed, so that an extractor that fails leaves all indexes intact.
+     */
+    private Integer[] attributes(String value) {
+        Integer[] attributes = new Integer[indexes.size()];
+        for (int i = 0; i < attributes.length; i++) {
+            attributes[i] = indexes.get(i).attribute(value);
+        }
+        return attributes;
+    }
+
+    private void update(Integer key, Integer[] oldAttributes, Integer[] newAttributes) {
+        for (int i = 0; i < indexes.size(); i++) {
+            indexes.get(i).update(key, oldAttributes[i], newAttributes[i]);
+        }
+    }
+}
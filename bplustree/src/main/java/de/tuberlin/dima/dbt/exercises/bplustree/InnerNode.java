@@ -7,6 +7,11 @@ public class InnerNode extends Node {
 
     private Node[] children;
 
+    /**
+     * Number of key/value pairs in the subtree, for rank and select queries.
+     */
+    private int entryCount;
+
     public InnerNode(int capacity) {
         this(new Integer[] {}, new Node[] {null}, capacity);
     }
@@ -15,6 +20,30 @@ public class InnerNode extends Node {
         super(keys, capacity);
         assert keys.length == children.length - 1;
         this.children = Arrays.copyOf(children, capacity + 1);
+        recount();
+    }
+
+    @Override
+    int entryCount() {
+        return entryCount;
+    }
+
+    void adjustEntryCount(int delta) {
+        entryCount += delta;
+    }
+
+    /**
+     * Recompute the entry count from the entry counts of the children.
+     */
+    void recount() {
+        int count = 0;
+        int size = size();
+        for (int i = 0; i <= size; i++) {
+            if (children[i] != null) {
+                count += children[i].entryCount();
+            }
+        }
+        entryCount = count;
     }
 
     public Node[] getChildren() {
@@ -23,6 +52,7 @@ public class InnerNode extends Node {
 
     public void setChildren(Node[] children) {
         this.children = Arrays.copyOf(children, this.children.length);
+        recount();
     }
 
     @Override
@@ -55,8 +85,9 @@ public class InnerNode extends Node {
 
     // InnerNode: 在数组前端插入键和子节点
     public void insertAtFront(Integer key, Node child) {
-        System.arraycopy(keys, 0, keys, 1, size());
-        System.arraycopy(children, 0, children, 1, size() + 1); // 子节点比键多一个
+        int size = size();
+        System.arraycopy(keys, 0, keys, 1, size);
+        System.arraycopy(children, 0, children, 1, size + 1); // 子节点比键多一个
         keys[0] = key;
         children[0] = child;
     }
@@ -68,20 +99,22 @@ public class InnerNode extends Node {
         children[s + 1] = child; // 注意子节点的位置
     }
 
-    // InnerNode: 删除指定位置的键和子节点
+    // InnerNode: 删除指定位置的键和它右边的子节点
     public void remove(int index) {
-        System.arraycopy(keys, index + 1, keys, index, size() - index - 1);
-        System.arraycopy(children, index + 1, children, index, size() - index);
-        keys[size() - 1] = null; // 清除最后一个键
-        children[size()] = null; // 清除最后一个子节点
+        int size = size();
+        System.arraycopy(keys, index + 1, keys, index, size - index - 1);
+        System.arraycopy(children, index + 2, children, index + 1, size - index - 1);
+        keys[size - 1] = null; // 清除最后一个键
+        children[size] = null; // 清除最后一个子节点
     }
 
     // InnerNode: 将数组中的元素向左移动一位，用于借用操作后的调整
     public void shiftLeft() {
-        System.arraycopy(keys, 1, keys, 0, size() - 1);
-        System.arraycopy(children, 1, children, 0, size()); // 子节点比键多一个
-        keys[size() - 1] = null; // 清除最后一个键
-        children[size()] = null; // 清除最后一个子节点
+        int size = size();
+        System.arraycopy(keys, 1, keys, 0, size - 1);
+        System.arraycopy(children, 1, children, 0, size); // 子节点比键多一个
+        keys[size - 1] = null; // 清除最后一个键
+        children[size] = null; // 清除最后一个子节点
     }
 
     public void merge(Integer separatorKey, InnerNode sibling) {
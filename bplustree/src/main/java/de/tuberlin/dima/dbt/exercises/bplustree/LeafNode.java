@@ -4,7 +4,16 @@ import java.util.Arrays;
 
 public class LeafNode extends Node {
 
-    private String[] values;
+    /**
+     * Values of the leaf, or {null} while the leaf is evicted to its
+     * {spill} file. Accessed directly only by the {LeafSpill}.
+     */
+    String[] values;
+
+    /**
+     * Spill file of the tree if it evicts cold leaves, or {null}.
+     */
+    LeafSpill spill;
 
     public LeafNode(int capacity) {
         this(new Integer[]{}, new String[]{}, capacity);
@@ -16,15 +25,36 @@ public class LeafNode extends Node {
         this.values = Arrays.copyOf(values, capacity);
     }
 
+    @Override
+    public Integer[] getKeys() {
+        access();
+        return keys;
+    }
+
+    @Override
+    public void setKeys(Integer[] keys) {
+        access();
+        super.setKeys(keys);
+    }
+
+    @Override
+    public void setKeysTemp(Integer[] keys) {
+        access();
+        super.setKeysTemp(keys);
+    }
+
     public String[] getValues() {
+        access();
         return values;
     }
 
     public void setValues(String[] values) {
-        this.values = Arrays.copyOf(values, BPlusTreeUtilities.CAPACITY);
+        access();
+        this.values = Arrays.copyOf(values, capacity);
     }
 
     public void setValueTemp(String[] values){
+        access();
         this.values = Arrays.copyOf(values, values.length);
     }
 
@@ -43,6 +73,16 @@ public class LeafNode extends Node {
     }
 
     public int size() {
+        access();
+        return size(values);
+    }
+
+    /**
+     * The entries end at the first {null} or {""} literal, so other empty
+     * strings are values. Also used by the {LeafSpill}, for which a call of
+     * {size()} would count as a use.
+     */
+    static int size(String[] values) {
         int count = 0;
         for (String value : values) {
             if (value == "" || value == null) {
@@ -53,8 +93,14 @@ public class LeafNode extends Node {
         return count;
     }
 
+    @Override
+    int entryCount() {
+        return size();
+    }
+
     // LeafNode: 在数组前端插入键值对
     public void insertAtFront(Integer key, String value) {
+        access();
         System.arraycopy(keys, 0, keys, 1, size());
         System.arraycopy(values, 0, values, 1, size());
         keys[0] = key;
@@ -63,6 +109,7 @@ public class LeafNode extends Node {
 
     // LeafNode: 在数组末尾添加键值对
     public void add(Integer key, String value) {
+        access();
         int s = size();
         keys[s] = key;
         values[s] = value;
@@ -70,6 +117,7 @@ public class LeafNode extends Node {
 
     // LeafNode: 删除指定位置的键值对
     public void remove(int index) {
+        access();
         System.arraycopy(keys, index + 1, keys, index, size() - index - 1);
         System.arraycopy(values, index + 1, values, index, size() - index - 1);
         keys[size() - 1] = null; // 清除最后一个元素
@@ -78,6 +126,7 @@ public class LeafNode extends Node {
 
     // LeafNode: 将数组中的元素向左移动一位，用于借用操作后的调整
     public void shiftLeft() {
+        access();
         System.arraycopy(keys, 1, keys, 0, size() - 1);
         System.arraycopy(values, 1, values, 0, size() - 1);
         keys[size() - 1] = null; // 清除最后一个元素
@@ -85,10 +134,43 @@ public class LeafNode extends Node {
     }
 
     public void merge(LeafNode sibling) {
+        access();
         int mergeSize = this.size() + sibling.size();
         assert mergeSize <= this.keys.length; // 确保不会超出容量
 
         System.arraycopy(sibling.getKeys(), 0, this.keys, this.size(), sibling.size());
         System.arraycopy(sibling.getValues(), 0, this.values, this.size(), sibling.size());
     }
+
+    /**
+     * Called when the leaf is removed from its tree, e.g., by a merge.
+     */
+    void discard() {
+        if (spill != null) {
+            spill.discard(this);
+            spill = null;
+        }
+    }
+
+    boolean isResident() {
+        return values != null;
+    }
+
+    /**
+     * @return {false} if the key is certainly not in the leaf, which an
+     * evicted leaf can tell from its filter without being reloaded.
+     */
+    boolean mightContain(Integer key) {
+        return spill == null || isResident() || spill.mightContain(this, key);
+    }
+
+    /**
+     * Reload the leaf if it is evicted and let the spill file know that it
+     * has been used.
+     */
+    private void access() {
+        if (spill != null) {
+            spill.access(this);
+        }
+    }
 }
@@ -0,0 +1,462 @@
+package de.tuberlin.dima.dbt.exercises.bplustree;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Spill file for the cold leaves of a {SpillingBPlusTree}.
+ * <p>
+ * The leaves of the tree point to this file and report every use (see
+ * {LeafNode.access}), so that the resident leaves can be kept in access
+ * order. {evict} writes the least recently used leaves to the file and drops
+ * their keys and values until the resident leaves fit into the budget again.
+ * An evicted leaf is read back on its next use.
+ * <p>
+ * Every leaf that has been evicted once keeps a slot in the file whose size
+ * is a power of two. A leaf that is evicted again is only written if it may
+ * have been modified since it was reloaded (see {setReading}), and in place
+ * if it still fits into its slot. Released slots are reused for leaves of
+ * the same slot size.
+ * <p>
+ * Evicted leaves can also be read ahead asynchronously with {prefetch}; a
+ * leaf whose read is in flight waits for it on its next use instead of
+ * reading the slot again. The slot of an evicted leaf is never written, so a
+ * prefetched copy cannot become outdated.
+ * <p>
+ * For the same reason, every evicted leaf can keep a {BloomFilter} of its
+ * keys that is built when the leaf is written. A lookup of a key that is not
+ * in an evicted leaf then mostly returns without reading the leaf (see
+ * {LeafNode.mightContain}).
+ */
+final class LeafSpill implements AutoCloseable {
+
+    private static final int MIN_SLOT_BYTES = 256;
+
+    /**
+     * Estimated size of a leaf object with its two arrays, without the
+     * entries.
+     */
+    private static final int LEAF_BYTES = 64;
+
+    private static final int REFERENCE_BYTES = 8;
+
+    /**
+     * Estimated size of a boxed key and of a string without its characters.
+     */
+    private static final int ENTRY_BYTES = 16 + 40;
+
+    /**
+     * Location of the last written copy of a leaf.
+     */
+    private static final class Slot {
+
+        long offset;
+
+        int size;
+
+        int length;
+
+        /**
+         * Filter of the keys in the written copy, or {null} if filters are
+         * disabled.
+         */
+        BloomFilter filter;
+    }
+
+    private final Path path;
+
+    private final FileChannel channel;
+
+    /**
+     * Second channel on the spill file for the reads of {prefetch}.
+     */
+    private final AsynchronousFileChannel prefetchChannel;
+
+    private final long budget;
+
+    private final int filterBitsPerKey;
+
+    /**
+     * Resident leaves, least recently used first.
+     */
+    private final LinkedHashMap<LeafNode, Boolean> recency = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * Estimated size of every resident leaf as of the last {evict}.
+     */
+    private final Map<LeafNode, Long> estimates = new HashMap<>();
+
+    /**
+     * Leaves used since the last {evict}, whose estimates may be outdated.
+     */
+    private final Set<LeafNode> used = new HashSet<>();
+
+    private final Map<LeafNode, Slot> slots = new HashMap<>();
+
+    /**
+     * Resident leaves that may differ from the copy in their slot. The
+     * getters of a leaf return its arrays, which the tree modifies in place,
+     * so every use outside of {reading} counts as a modification.
+     */
+    private final Set<LeafNode> modified = new HashSet<>();
+
+    /**
+     * Whether the leaves are currently only read, see {setReading}.
+     */
+    private boolean reading = false;
+
+    private final Map<Integer, Deque<Long>> freeSlots = new HashMap<>();
+
+    /**
+     * Reads in flight or completed for evicted leaves.
+     */
+    private final Map<LeafNode, CompletableFuture<ByteBuffer>> prefetches = new HashMap<>();
+
+    private long residentBytes = 0;
+
+    private long prefetchesIssued = 0;
+
+    /**
+     * Prefetches whose read has been used to reload the leaf.
+     */
+    private long prefetchesUsed = 0;
+
+    private long end = 0;
+
+    /**
+     * @param filterBitsPerKey Size of the filters of the evicted leaves, or 0
+     *                         to not keep filters.
+     */
+    LeafSpill(Path path, long budget, int filterBitsPerKey) throws IOException {
+        this.path = path;
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        this.prefetchChannel = AsynchronousFileChannel.open(path, StandardOpenOption.READ);
+        this.budget = budget;
+        this.filterBitsPerKey = filterBitsPerKey;
+    }
+
+    /**
+     * Take over a resident leaf of the tree.
+     */
+    void admit(LeafNode leaf) {
+        leaf.spill = this;
+        access(leaf);
+    }
+
+    void access(LeafNode leaf) {
+        if (!leaf.isResident()) {
+            reload(leaf);
+        }
+        recency.put(leaf, Boolean.TRUE);
+        used.add(leaf);
+        if (!reading) {
+            modified.add(leaf);
+        }
+    }
+
+    /**
+     * Declare that the following uses of leaves only read them, until
+     * reading is set to {false} again. Evicting a leaf that has only been
+     * read since it was reloaded does not write it again.
+     */
+    void setReading(boolean reading) {
+        this.reading = reading;
+    }
+
+    void discard(LeafNode leaf) {
+        recency.remove(leaf);
+        used.remove(leaf);
+        modified.remove(leaf);
+        Long estimate = estimates.remove(leaf);
+        if (estimate != null) {
+            residentBytes -= estimate;
+        }
+        Slot slot = slots.remove(leaf);
+        if (slot != null) {
+            release(slot);
+        }
+    }
+
+    /**
+     * @return {false} if the key is certainly not in the evicted leaf.
+     */
+    boolean mightContain(LeafNode leaf, int key) {
+        BloomFilter filter = slots.get(leaf).filter;
+        return filter == null || filter.mightContain(key);
+    }
+
+    /**
+     * Start reading the leaf in the background if it is evicted.
+     */
+    void prefetch(LeafNode leaf) {
+        if (leaf.isResident() || prefetches.containsKey(leaf)) {
+            return;
+        }
+        Slot slot = slots.get(leaf);
+        CompletableFuture<ByteBuffer> read = new CompletableFuture<>();
+        readAsync(ByteBuffer.allocate(slot.length), slot.offset, read);
+        prefetches.put(leaf, read);
+        prefetchesIssued++;
+    }
+
+    /**
+     * @return Whether the leaf can be used without waiting for the disk.
+     */
+    boolean isReady(LeafNode leaf) {
+        if (leaf.isResident()) {
+            return true;
+        }
+        CompletableFuture<ByteBuffer> read = prefetches.get(leaf);
+        return read != null && read.isDone();
+    }
+
+    /**
+     * Drop the prefetched copies that have not been used. Reads in flight
+     * complete into buffers that are then discarded.
+     */
+    void cancelPrefetches() {
+        prefetches.clear();
+    }
+
+    /**
+     * Evict least recently used leaves until the resident leaves fit into
+     * the budget. Must only be called between operations on the tree, as
+     * operations keep references to the arrays of the leaves they use.
+     */
+    void evict() throws IOException {
+        for (LeafNode leaf : used) {
+            // no getters here, they would count as a use
+            long estimate = estimate(leaf);
+            Long previous = estimates.put(leaf, estimate);
+            residentBytes += estimate - (previous == null ? 0 : previous);
+        }
+        used.clear();
+        Iterator<LeafNode> leastRecent = recency.keySet().iterator();
+        while (residentBytes > budget && leastRecent.hasNext()) {
+            LeafNode leaf = leastRecent.next();
+            write(leaf);
+            leastRecent.remove();
+            residentBytes -= estimates.remove(leaf);
+            leaf.keys = null;
+            leaf.values = null;
+        }
+    }
+
+    long residentBytes() {
+        return residentBytes;
+    }
+
+    long prefetchesIssued() {
+        return prefetchesIssued;
+    }
+
+    long prefetchesUsed() {
+        return prefetchesUsed;
+    }
+
+    /**
+     * @return The number of leaves that have been read ahead but not used
+     * yet.
+     */
+    int pendingPrefetches() {
+        return prefetches.size();
+    }
+
+    int evictedLeaves() {
+        int count = 0;
+        for (LeafNode leaf : slots.keySet()) {
+            count += leaf.isResident() ? 0 : 1;
+        }
+        return count;
+    }
+
+    /**
+     * Reload all evicted leaves, detach the leaves from this file and
+     * delete it.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            List<LeafNode> leaves = new ArrayList<>(slots.keySet());
+            leaves.addAll(recency.keySet());
+            for (LeafNode leaf : leaves) {
+                if (!leaf.isResident()) {
+                    reload(leaf);
+                }
+                leaf.spill = null;
+            }
+        } finally {
+            modified.clear();
+            prefetches.clear();
+            prefetchChannel.close();
+            channel.close();
+            Files.deleteIfExists(path);
+        }
+    }
+
+    private void reload(LeafNode leaf) {
+        CompletableFuture<ByteBuffer> prefetched = prefetches.remove(leaf);
+        if (prefetched != null) {
+            prefetchesUsed++;
+        }
+        ByteBuffer buffer;
+        try {
+            buffer = prefetched != null ? prefetched.join() : read(slots.get(leaf));
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof IOException ? new UncheckedIOException((IOException) e.getCause()) : e;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        int size = buffer.getInt();
+        Integer[] keys = new Integer[size];
+        String[] values = new String[size];
+        for (int i = 0; i < size; i++) {
+            keys[i] = buffer.getInt();
+        }
+        for (int i = 0; i < size; i++) {
+            int length = buffer.getInt();
+            values[i] = new String(buffer.array(), buffer.position(), length, StandardCharsets.UTF_8);
+            buffer.position(buffer.position() + length);
+        }
+        // pad the arrays to the capacity like the setters of the leaf do
+        leaf.keys = Arrays.copyOf(keys, leaf.capacity);
+        leaf.values = Arrays.copyOf(values, leaf.capacity);
+        long estimate = estimate(leaf);
+        estimates.put(leaf, estimate);
+        residentBytes += estimate;
+    }
+
+    private ByteBuffer read(Slot slot) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(slot.length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, slot.offset + buffer.position()) < 0) {
+                throw new IOException("Spill file is truncated");
+            }
+        }
+        return buffer.flip();
+    }
+
+    private void readAsync(ByteBuffer buffer, long offset, CompletableFuture<ByteBuffer> read) {
+        prefetchChannel.read(buffer, offset + buffer.position(), buffer, new CompletionHandler<Integer, ByteBuffer>() {
+            @Override
+            public void completed(Integer bytes, ByteBuffer buffer) {
+                if (bytes < 0) {
+                    read.completeExceptionally(new IOException("Spill file is truncated"));
+                } else if (buffer.hasRemaining()) {
+                    readAsync(buffer, offset, read);
+                } else {
+                    read.complete(buffer.flip());
+                }
+            }
+
+            @Override
+            public void failed(Throwable e, ByteBuffer buffer) {
+                read.completeExceptionally(e);
+            }
+        });
+    }
+
+    private void write(LeafNode leaf) throws IOException {
+        Slot slot = slots.get(leaf);
+        if (!modified.remove(leaf) && slot != null) {
+            // unchanged since it was last evicted
+            return;
+        }
+        byte[] bytes = encode(leaf);
+        if (slot != null && slot.size < bytes.length) {
+            release(slot);
+            slot = null;
+        }
+        if (slot == null) {
+            slot = allocate(bytes.length);
+            slots.put(leaf, slot);
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, slot.offset + buffer.position());
+        }
+        slot.length = bytes.length;
+        slot.filter = filterBitsPerKey > 0 ? filter(leaf) : null;
+    }
+
+    private BloomFilter filter(LeafNode leaf) {
+        int size = size(leaf);
+        BloomFilter filter = new BloomFilter(size, filterBitsPerKey);
+        for (int i = 0; i < size; i++) {
+            filter.add(leaf.keys[i]);
+        }
+        return filter;
+    }
+
+    private Slot allocate(int length) {
+        Slot slot = new Slot();
+        slot.size = Math.max(MIN_SLOT_BYTES, Integer.highestOneBit(length - 1) << 1);
+        Deque<Long> free = freeSlots.get(slot.size);
+        if (free != null && !free.isEmpty()) {
+            slot.offset = free.pop();
+        } else {
+            slot.offset = end;
+            end += slot.size;
+        }
+        return slot;
+    }
+
+    private void release(Slot slot) {
+        freeSlots.computeIfAbsent(slot.size, size -> new ArrayDeque<>()).push(slot.offset);
+    }
+
+    private static byte[] encode(LeafNode leaf) {
+        int size = size(leaf);
+        byte[][] values = new byte[size][];
+        int length = Integer.BYTES + size * 2 * Integer.BYTES;
+        for (int i = 0; i < size; i++) {
+            values[i] = leaf.values[i].getBytes(StandardCharsets.UTF_8);
+            length += values[i].length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        buffer.putInt(size);
+        for (int i = 0; i < size; i++) {
+            buffer.putInt(leaf.keys[i]);
+        }
+        for (byte[] value : values) {
+            buffer.putInt(value.length);
+            buffer.put(value);
+        }
+        return buffer.array();
+    }
+
+    private static long estimate(LeafNode leaf) {
+        long bytes = LEAF_BYTES + 2L * REFERENCE_BYTES * leaf.capacity;
+        int size = size(leaf);
+        for (int i = 0; i < size; i++) {
+            bytes += ENTRY_BYTES + leaf.values[i].length();
+        }
+        return bytes;
+    }
+
+    private static int size(LeafNode leaf) {
+        return LeafNode.size(leaf.values);
+    }
+}
@@ -0,0 +1,204 @@
+package de.tuberlin.dima.dbt.exercises.bplustree;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Learned index over the sorted keys of a {FrozenBPlusTree}.
+ * <p>
+ * The position of a key in the sorted key array is approximated by linear
+ * segments, each of which predicts the position of every key it covers with
+ * an error of at most {maxError}. The segments are fitted greedily: a
+ * segment is extended as long as some slope through its first key keeps all
+ * covered keys within the error bound. A lookup predicts the position of the
+ * key and searches only the {2 * maxError + 1} positions around it.
+ * <p>
+ * To find the segment of a key, the first keys of the segments are indexed
+ * by segments in the same way, level by level, until the top level has at
+ * most {ROOT_SEGMENTS} segments. The top level is searched directly, and
+ * every level below costs one prediction and one bounded search, like a
+ * descent through inner nodes whose position within the node is computed
+ * instead of searched.
+ */
+public class LearnedIndex {
+
+    static final int ROOT_SEGMENTS = 16;
+
+    /**
+     * Segments that approximate the positions in a sorted array.
+     */
+    private static final class Level {
+
+        final int[] firstKeys;
+
+        /**
+         * Position of the first key of every segment in the array.
+         */
+        final int[] starts;
+
+        final double[] slopes;
+
+        /**
+         * Length of the array, i.e., the end of the last segment.
+         */
+        final int length;
+
+        Level(int[] firstKeys, int[] starts, double[] slopes, int length) {
+            this.firstKeys = firstKeys;
+            this.starts = starts;
+            this.slopes = slopes;
+            this.length = length;
+        }
+
+        int segments() {
+            return firstKeys.length;
+        }
+
+        /**
+         * @return The predicted position of the key in the segment, within
+         * the positions of the segment.
+         */
+        int predict(int segment, int key) {
+            long position = start(segment) + (long) (slopes[segment] * ((long) key - firstKeys[segment]));
+            return (int) Math.max(start(segment), Math.min(end(segment) - 1, position));
+        }
+
+        int start(int segment) {
+            return starts[segment];
+        }
+
+        int end(int segment) {
+            return segment + 1 < segments() ? starts[segment + 1] : length;
+        }
+    }
+
+    private final int[] keys;
+
+    private final String[] values;
+
+    private final int maxError;
+
+    /**
+     * Segments over the keys first, then segments over the first keys of
+     * the level below.
+     */
+    private final List<Level> levels = new ArrayList<>();
+
+    LearnedIndex(int[] keys, String[] values, int maxError) {
+        assert maxError > 0;
+        this.keys = keys;
+        this.values = values;
+        this.maxError = maxError;
+        int[] sorted = keys;
+        while (sorted.length > 0) {
+            Level level = fit(sorted, maxError);
+            levels.add(level);
+            if (level.segments() <= ROOT_SEGMENTS) {
+                break;
+            }
+            sorted = level.firstKeys;
+        }
+    }
+
+    /**
+     * Lookup the value stored under the given key.
+     *
+     * @return The stored value, or {null} if the key does not exist.
+     */
+    public String lookup(int key) {
+        if (levels.isEmpty() || key < keys[0]) {
+            return null;
+        }
+        Level top = levels.get(levels.size() - 1);
+        int segment = lastNotGreater(top.firstKeys, key, 0, top.segments() - 1);
+        for (int l = levels.size() - 1; l > 0; l--) {
+            Level level = levels.get(l);
+            int[] below = levels.get(l - 1).firstKeys;
+            segment = lastNotGreater(below, key, low(level, segment, key), high(level, segment, key));
+        }
+        Level bottom = levels.get(0);
+        int position = lastNotGreater(keys, key, low(bottom, segment, key), high(bottom, segment, key));
+        return keys[position] == key ? values[position] : null;
+    }
+
+    /**
+     * @return The number of segments over the keys.
+     */
+    public int segments() {
+        return levels.isEmpty() ? 0 : levels.get(0).segments();
+    }
+
+    /**
+     * @return The number of levels of segments.
+     */
+    public int height() {
+        return levels.size();
+    }
+
+    private int low(Level level, int segment, int key) {
+        // one more position than the error bound for rounding
+        return Math.max(level.start(segment), level.predict(segment, key) - maxError - 1);
+    }
+
+    private int high(Level level, int segment, int key) {
+        return Math.min(level.end(segment) - 1, level.predict(segment, key) + maxError + 1);
+    }
+
+    /**
+     * Binary search in {sorted[low..high]}, where {sorted[low]} is not
+     * greater than the key.
+     *
+     * @return The position of the last key that is not greater than the key.
+     */
+    private static int lastNotGreater(int[] sorted, int key, int low, int high) {
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (sorted[mid] <= key) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Cover the strictly increasing keys with as few segments as the greedy
+     * approach finds. Each segment starts at its first key and keeps the
+     * range of slopes for which all its keys are predicted within the error.
+     */
+    private static Level fit(int[] sorted, int maxError) {
+        List<Integer> starts = new ArrayList<>();
+        List<Double> slopes = new ArrayList<>();
+        int start = 0;
+        while (start < sorted.length) {
+            double minSlope = 0;
+            double maxSlope = Double.POSITIVE_INFINITY;
+            int end = start + 1;
+            while (end < sorted.length) {
+                double dx = (double) sorted[end] - sorted[start];
+                double dy = end - start;
+                double low = (dy - maxError) / dx;
+                double high = (dy + maxError) / dx;
+                if (low > maxSlope || high < minSlope) {
+                    break;
+                }
+                minSlope = Math.max(minSlope, low);
+                maxSlope = Math.min(maxSlope, high);
+                end++;
+            }
+            starts.add(start);
+            slopes.add(maxSlope == Double.POSITIVE_INFINITY ? 0 : (minSlope + maxSlope) / 2);
+            start = end;
+        }
+        int[] firstKeys = new int[starts.size()];
+        int[] startArray = new int[starts.size()];
+        double[] slopeArray = new double[starts.size()];
+        for (int i = 0; i < firstKeys.length; i++) {
+            startArray[i] = starts.get(i);
+            firstKeys[i] = sorted[startArray[i]];
+            slopeArray[i] = slopes.get(i);
+        }
+        return new Level(firstKeys, startArray, slopeArray, sorted.length);
+    }
+}
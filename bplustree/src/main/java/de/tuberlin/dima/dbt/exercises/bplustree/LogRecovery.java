@@ -0,0 +1,221 @@
+package de.tuberlin.dima.dbt.exercises.bplustree;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * Parallel replay of a {MutationLog}.
+ * <p>
+ * The log is read sequentially in large chunks. The records of a chunk are
+ * partitioned by key range, and every partition reduces its records to the
+ * net effect per key (the last value, or a deletion) on the executor, while
+ * the next chunk is being read. The partitions are then sorted in parallel
+ * and merged into the tree in ascending key order with {BPlusTree.merge},
+ * so that each leaf is touched in one sequential pass no matter how often its
+ * keys occur in the log. The work therefore grows with the size of the log
+ * only for reading and reducing it, and with the number of distinct keys for
+ * the merge.
+ * <p>
+ * As with {BPlusTree.put}, a logged insert of an existing key replaces its
+ * value. Replay stops at the first incomplete or corrupted record, which is
+ * the end of the log after a crash, and cuts the log there.
+ */
+public final class LogRecovery {
+
+    private static final int READ_SIZE = 8 * 1024 * 1024;
+
+    /**
+     * Marks a deleted key in the net effects. Compared by identity.
+     */
+    private static final String TOMBSTONE = new String("");
+
+    /**
+     * Records of one chunk that fall into one partition.
+     */
+    private static class Batch {
+
+        int[] keys = new int[64];
+
+        String[] values = new String[64];
+
+        int size = 0;
+
+        void add(int key, String value) {
+            if (size == keys.length) {
+                keys = Arrays.copyOf(keys, 2 * size);
+                values = Arrays.copyOf(values, 2 * size);
+            }
+            keys[size] = key;
+            values[size] = value;
+            size++;
+        }
+    }
+
+    private LogRecovery() {
+    }
+
+    /**
+     * Apply all complete records of the log to the tree, typically the tree
+     * of the last checkpoint.
+     *
+     * @param partitions Number of key ranges that are reduced in parallel.
+     * @return The number of replayed records.
+     */
+    public static long replay(BPlusTree tree, Path log, int partitions, Executor executor) throws IOException {
+        assert partitions > 0;
+        List<Map<Integer, String>> effects = new ArrayList<>(partitions);
+        List<CompletableFuture<Void>> tails = new ArrayList<>(partitions);
+        for (int p = 0; p < partitions; p++) {
+            effects.add(new HashMap<>());
+            tails.add(CompletableFuture.completedFuture(null));
+        }
+        CompletableFuture<?>[] previous = tails.toArray(new CompletableFuture<?>[0]);
+        int[] boundaries = null;
+        long records = 0;
+
+        try (FileChannel channel = FileChannel.open(log, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.allocate(READ_SIZE);
+            long validEnd = 0;
+            boolean end = false;
+            while (!end) {
+                end = channel.read(buffer) < 0;
+                buffer.flip();
+                int start = buffer.position();
+                Batch[] batches = new Batch[partitions];
+                Batch all = new Batch();
+                int record;
+                while ((record = nextRecord(buffer)) > 0) {
+                    int payload = buffer.position() - record + Integer.BYTES;
+                    int key = buffer.getInt(payload + 1);
+                    String value = buffer.get(payload) == MutationLog.DELETE ? TOMBSTONE
+                            : new String(buffer.array(), payload + 1 + Integer.BYTES,
+                                         record - 2 * Integer.BYTES - 1 - Integer.BYTES, StandardCharsets.UTF_8);
+                    all.add(key, value);
+                }
+                if (record < 0) {
+                    // corrupted record, the rest of the log is garbage
+                    end = true;
+                }
+                validEnd += buffer.position() - start;
+                records += all.size;
+                if (boundaries == null && all.size > 0) {
+                    boundaries = boundaries(all, partitions);
+                }
+                for (int i = 0; i < all.size; i++) {
+                    int p = partition(boundaries, all.keys[i]);
+                    if (batches[p] == null) {
+                        batches[p] = new Batch();
+                    }
+                    batches[p].add(all.keys[i], all.values[i]);
+                }
+                // the previous chunk was reduced while this one was read, wait
+                // for it so that at most two chunks are in memory
+                CompletableFuture.allOf(previous).join();
+                previous = tails.toArray(new CompletableFuture<?>[0]);
+                for (int p = 0; p < partitions; p++) {
+                    if (batches[p] != null) {
+                        Batch batch = batches[p];
+                        Map<Integer, String> partition = effects.get(p);
+                        tails.set(p, tails.get(p).thenRunAsync(() -> reduce(batch, partition), executor));
+                    }
+                }
+                buffer.compact();
+                if (!buffer.hasRemaining()) {
+                    // a single record that does not fit into the buffer
+                    buffer = ByteBuffer.allocate(2 * buffer.capacity()).put(buffer.flip());
+                }
+            }
+            if (validEnd < channel.size()) {
+                channel.truncate(validEnd);
+                channel.force(false);
+            }
+        }
+
+        List<CompletableFuture<TreeMap<Integer, String>>> sorted = new ArrayList<>(partitions);
+        for (int p = 0; p < partitions; p++) {
+            Map<Integer, String> partition = effects.get(p);
+            sorted.add(tails.get(p).thenApplyAsync(ignored -> new TreeMap<>(partition), executor));
+        }
+        // the partitions are key ranges in ascending order
+        for (CompletableFuture<TreeMap<Integer, String>> partition : sorted) {
+            tree.merge(partition.join().entrySet().stream()
+                               .map(entry -> new AbstractMap.SimpleImmutableEntry<>(
+                                       entry.getKey(), entry.getValue() == TOMBSTONE ? null : entry.getValue()))
+                               .iterator());
+        }
+        return records;
+    }
+
+    /**
+     * Advance the buffer over the next complete record.
+     *
+     * @return The length of the record, 0 if the buffer ends before the
+     * record does, or -1 if the record is corrupted.
+     */
+    private static int nextRecord(ByteBuffer buffer) {
+        if (buffer.remaining() < Integer.BYTES) {
+            return 0;
+        }
+        int position = buffer.position();
+        int length = buffer.getInt(position);
+        if (length < 1 + Integer.BYTES || length > BPlusTreeSerializer.MAX_RECORD_BYTES) {
+            return -1;
+        }
+        int record = length + 2 * Integer.BYTES;
+        if (buffer.remaining() < record) {
+            return 0;
+        }
+        int payload = position + Integer.BYTES;
+        if (buffer.getInt(payload + length) != BPlusTreeSerializer.checksum(buffer.array(), payload, length)) {
+            return -1;
+        }
+        buffer.position(position + record);
+        return record;
+    }
+
+    private static void reduce(Batch batch, Map<Integer, String> effects) {
+        for (int i = 0; i < batch.size; i++) {
+            effects.put(batch.keys[i], batch.values[i]);
+        }
+    }
+
+    /**
+     * Choose the partition boundaries as quantiles of the keys of the first
+     * chunk.
+     */
+    private static int[] boundaries(Batch sample, int partitions) {
+        int[] keys = Arrays.copyOf(sample.keys, sample.size);
+        Arrays.sort(keys);
+        int[] boundaries = new int[partitions - 1];
+        for (int i = 1; i < partitions; i++) {
+            boundaries[i - 1] = keys[(int) ((long) i * keys.length / partitions)];
+        }
+        return boundaries;
+    }
+
+    private static int partition(int[] boundaries, int key) {
+        int index = Arrays.binarySearch(boundaries, key);
+        // keys equal to a boundary belong to the partition that starts there,
+        // duplicates among the boundaries leave some partitions empty
+        if (index >= 0) {
+            while (index + 1 < boundaries.length && boundaries[index + 1] == key) {
+                index++;
+            }
+            return index + 1;
+        }
+        return -index - 1;
+    }
+}
@@ -0,0 +1,119 @@
+package de.tuberlin.dima.dbt.exercises.bplustree;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Append-only log of the mutations of a B+ tree.
+ * <p>
+ * Every insert and delete is appended as a record with the layout of the
+ * records of the {BPlusTreeSerializer}: its length, a payload with the
+ * operation, the key and the value, and the CRC32C checksum of the payload.
+ * Records are buffered and only durable after {sync}.
+ * <p>
+ * Together with a {Checkpointer}, the log is used as follows: log every
+ * mutation of the tree; after a checkpoint, {truncate} the log. To recover,
+ * open the last checkpoint and replay the log with {LogRecovery}. Replaying
+ * is idempotent, so a crash between a checkpoint and the truncation is
+ * harmless.
+ */
+public class MutationLog implements AutoCloseable {
+
+    static final byte INSERT = 0;
+
+    static final byte DELETE = 1;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final FileChannel channel;
+
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+    private MutationLog(FileChannel channel) {
+        this.channel = channel;
+    }
+
+    /**
+     * Open the log for appending, creating it if necessary. A torn record at
+     * the end of an existing log must have been removed before, which
+     * {LogRecovery.replay} does.
+     */
+    public static MutationLog open(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        channel.position(channel.size());
+        return new MutationLog(channel);
+    }
+
+    public void logInsert(Integer key, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer payload = ByteBuffer.allocate(1 + Integer.BYTES + bytes.length);
+        payload.put(INSERT).putInt(key).put(bytes);
+        append(payload.array());
+    }
+
+    public void logDelete(Integer key) throws IOException {
+        ByteBuffer payload = ByteBuffer.allocate(1 + Integer.BYTES);
+        payload.put(DELETE).putInt(key);
+        append(payload.array());
+    }
+
+    /**
+     * Write all buffered records and force them to disk.
+     */
+    public void sync() throws IOException {
+        flush();
+        channel.force(false);
+    }
+
+    /**
+     * Drop all records, e.g., after they have been made durable by a
+     * checkpoint.
+     */
+    public void truncate() throws IOException {
+        buffer.clear();
+        channel.truncate(0);
+        channel.position(0);
+        channel.force(false);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            sync();
+        } finally {
+            channel.close();
+        }
+    }
+
+    private void append(byte[] payload) throws IOException {
+        int length = payload.length + 2 * Integer.BYTES;
+        if (payload.length > BPlusTreeSerializer.MAX_RECORD_BYTES) {
+            throw new IOException("Record exceeds the maximum size of " + BPlusTreeSerializer.MAX_RECORD_BYTES
+                                          + " bytes");
+        }
+        if (buffer.remaining() < length) {
+            flush();
+        }
+        ByteBuffer target = buffer.remaining() < length ? ByteBuffer.allocate(length) : buffer;
+        target.putInt(payload.length).put(payload).putInt(BPlusTreeSerializer.checksum(payload, 0, payload.length));
+        if (target != buffer) {
+            // larger than the buffer, write it directly
+            writeFully(target.flip());
+        }
+    }
+
+    private void flush() throws IOException {
+        writeFully(buffer.flip());
+        buffer.clear();
+    }
+
+    private void writeFully(ByteBuffer bytes) throws IOException {
+        while (bytes.hasRemaining()) {
+            channel.write(bytes);
+        }
+    }
+}
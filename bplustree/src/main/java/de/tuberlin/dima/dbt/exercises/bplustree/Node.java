@@ -6,8 +6,47 @@ public abstract class Node {
 
     protected Integer[] keys;
 
+    protected final int capacity;
+
+    /**
+     * Smallest key that belongs to the right sibling of this node, or
+     * {null} for the rightmost node of a level.
+     */
+    protected Integer highKey;
+
+    /**
+     * Right sibling of this node on the same level, or {null}.
+     */
+    protected Node rightLink;
+
+    /**
+     * Left sibling of this node on the same level, or {null}.
+     */
+    protected Node leftLink;
+
+    /**
+     * Whether the node was modified since a {Checkpointer} last wrote it.
+     * New nodes start out dirty.
+     */
+    boolean dirty = true;
+
+    /**
+     * Whether a node below this one may have been modified since a
+     * {Checkpointer} last visited this node, so that the next checkpoint
+     * has to look at the children. Set on the path to every modified node
+     * (see {BPlusTree.markPath}); subtrees without it are skipped.
+     */
+    boolean dirtyBelow = false;
+
+    /**
+     * Position of the last written copy of the node in the checkpoint file,
+     * or -1 if it has not been written yet.
+     */
+    long page = -1;
+
     public Node(Integer[] keys, int capacity) {
         assert keys.length <= capacity;
+        this.capacity = capacity;
         this.keys = Arrays.copyOf(keys, capacity);
     }
 
@@ -16,13 +55,51 @@ public abstract class Node {
     }
 
     public void setKeys(Integer[] keys) {
-        this.keys = Arrays.copyOf(keys, BPlusTreeUtilities.CAPACITY);
+        this.keys = Arrays.copyOf(keys, capacity);
     }
 
     public void setKeysTemp(Integer[] keys) {
         this.keys = Arrays.copyOf(keys, keys.length);
     }
 
+    public Integer getHighKey() {
+        return highKey;
+    }
+
+    public Node getRightLink() {
+        return rightLink;
+    }
+
+    public Node getLeftLink() {
+        return leftLink;
+    }
+
+    void markDirty() {
+        dirty = true;
+    }
+
+    void link(Integer highKey, Node rightLink) {
+        this.highKey = highKey;
+        this.rightLink = rightLink;
+        if (rightLink != null) {
+            rightLink.leftLink = this;
+        }
+    }
+
+    /**
+     * Insert the new right half of this node, which was just split at the
+     * given separator, into the chain of right links.
+     */
+    void linkSplit(Integer separator, Node right) {
+        right.link(highKey, rightLink);
+        link(separator, right);
+    }
+
+    /**
+     * @return The number of key/value pairs in the subtree of this node.
+     */
+    abstract int entryCount();
+
     public abstract Object[] getPayload();
 
     public abstract void setPayload(Object[] payload);
@@ -30,4 +107,45 @@ public abstract class Node {
     // 新增抽象方法size()
     public abstract int size();
 
+    /**
+     * Binary search among the first {size} keys.
+     *
+     * @return The number of keys that are smaller than the given key.
+     */
+    int lowerBound(Integer key, int size) {
+        Integer[] keys = getKeys();
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (keys[mid].compareTo(key) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Binary search among the first {size} keys.
+     *
+     * @return The number of keys that are smaller than or equal to the given
+     * key, i.e., the index of the child of an inner node that covers the key.
+     */
+    int upperBound(Integer key, int size) {
+        Integer[] keys = getKeys();
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (keys[mid].compareTo(key) <= 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
 }
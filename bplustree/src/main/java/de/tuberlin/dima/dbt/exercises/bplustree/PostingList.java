@@ -0,0 +1,479 @@
+package de.tuberlin.dima.dbt.exercises.bplustree;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+
+/**
+ * Sorted set of value ids for one key of a {BPlusMultiMap}.
+ * <p>
+ * The ids are delta-encoded as variable-length integers. Short lists are
+ * stored inline in the leaf; the encoding is kept in the value string with
+ * one character per byte, which Java stores with one byte per character.
+ * Lists with more than {INLINE_BYTES} bytes move into overflow pages of at
+ * most {PAGE_BYTES} bytes, and the leaf only keeps a directory with the id,
+ * the first value id and the number of ids of every page. An update then
+ * rewrites a single page.
+ */
+final class PostingList {
+
+    static final int INLINE_BYTES = 64;
+
+    static final int PAGE_BYTES = 4096;
+
+    private static final int INLINE = 0;
+
+    private static final int PAGED = 1;
+
+    /**
+     * Storage of the overflow pages of all lists of a multimap.
+     */
+    static final class PageStore {
+
+        private final List<byte[]> pages = new ArrayList<>();
+
+        private final Deque<Integer> free = new ArrayDeque<>();
+
+        int allocate(byte[] page) {
+            Integer id = free.poll();
+            if (id == null) {
+                pages.add(page);
+                return pages.size() - 1;
+            }
+            pages.set(id, page);
+            return id;
+        }
+
+        byte[] get(int id) {
+            return pages.get(id);
+        }
+
+        void set(int id, byte[] page) {
+            pages.set(id, page);
+        }
+
+        void release(int id) {
+            pages.set(id, null);
+            free.push(id);
+        }
+
+        /**
+         * @return The number of pages in use.
+         */
+        int size() {
+            return pages.size() - free.size();
+        }
+    }
+
+    private final PageStore store;
+
+    private int size = 0;
+
+    /**
+     * Ids of an inline list, {null} for a paged list.
+     */
+    private long[] inline = new long[0];
+
+    private int[] pageIds;
+
+    private long[] firstIds;
+
+    private int[] counts;
+
+    private int pageCount;
+
+    PostingList(PageStore store) {
+        this.store = store;
+    }
+
+    static PostingList decode(String value, PageStore store) {
+        byte[] bytes = value.getBytes(StandardCharsets.ISO_8859_1);
+        Decoder in = new Decoder(bytes, 1);
+        PostingList list = new PostingList(store);
+        list.size = (int) in.next();
+        if (bytes[0] == INLINE) {
+            list.inline = in.nextIds(list.size);
+            return list;
+        }
+        list.inline = null;
+        list.pageCount = (int) in.next();
+        list.pageIds = new int[list.pageCount];
+        list.firstIds = new long[list.pageCount];
+        list.counts = new int[list.pageCount];
+        long first = 0;
+        for (int i = 0; i < list.pageCount; i++) {
+            list.pageIds[i] = (int) in.next();
+            first += in.next();
+            list.firstIds[i] = first;
+            list.counts[i] = (int) in.next();
+        }
+        return list;
+    }
+
+    String encode() {
+        Encoder out = new Encoder();
+        out.put(inline != null ? INLINE : PAGED);
+        out.putVarint(size);
+        if (inline != null) {
+            out.putIds(inline, 0, inline.length);
+        } else {
+            out.putVarint(pageCount);
+            long first = 0;
+            for (int i = 0; i < pageCount; i++) {
+                out.putVarint(pageIds[i]);
+                out.putVarint(firstIds[i] - first);
+                first = firstIds[i];
+                out.putVarint(counts[i]);
+            }
+        }
+        return new String(out.toArray(), StandardCharsets.ISO_8859_1);
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return Whether the id was not contained yet.
+     */
+    boolean add(long id) {
+        if (id < 0) {
+            throw new IllegalArgumentException("Value ids must not be negative: " + id);
+        }
+        if (inline != null) {
+            long[] ids = inserted(inline, id);
+            if (ids == null) {
+                return false;
+            }
+            size++;
+            inline = ids;
+            if (encodedSize(ids, 0, ids.length) > INLINE_BYTES) {
+                moveToPages(ids);
+            }
+            return true;
+        }
+        int page = findPage(id);
+        long[] ids = inserted(new Decoder(store.get(pageIds[page]), 0).nextIds(counts[page]), id);
+        if (ids == null) {
+            return false;
+        }
+        size++;
+        if (encodedSize(ids, 0, ids.length) <= PAGE_BYTES) {
+            writePage(page, ids, 0, ids.length);
+        } else {
+            int half = ids.length / 2;
+            writePage(page, ids, 0, half);
+            insertPage(page + 1, store.allocate(new byte[0]));
+            writePage(page + 1, ids, half, ids.length);
+        }
+        return true;
+    }
+
+    /**
+     * Add the ids, which must be sorted in ascending order, by merging them
+     * with the list and writing the whole list again.
+     *
+     * @return The number of ids that were not contained yet.
+     */
+    int addAll(long[] ids) {
+        if (ids.length > 0 && ids[0] < 0) {
+            throw new IllegalArgumentException("Value ids must not be negative: " + ids[0]);
+        }
+        long[] existing = new long[size];
+        PrimitiveIterator.OfLong it = iterator();
+        for (int i = 0; i < size; i++) {
+            existing[i] = it.nextLong();
+        }
+        long[] merged = new long[existing.length + ids.length];
+        int count = 0;
+        int i = 0;
+        int j = 0;
+        while (i < existing.length || j < ids.length) {
+            long id = j == ids.length || (i < existing.length && existing[i] <= ids[j]) ? existing[i++] : ids[j++];
+            if (count == 0 || merged[count - 1] != id) {
+                merged[count++] = id;
+            }
+        }
+        int added = count - size;
+        if (added > 0) {
+            clear();
+            merged = Arrays.copyOf(merged, count);
+            size = count;
+            if (encodedSize(merged, 0, count) > INLINE_BYTES) {
+                moveToPages(merged);
+            } else {
+                inline = merged;
+            }
+        }
+        return added;
+    }
+
+    /**
+     * @return Whether the id was contained.
+     */
+    boolean remove(long id) {
+        if (inline != null) {
+            int index = Arrays.binarySearch(inline, id);
+            if (index < 0) {
+                return false;
+            }
+            inline = removed(inline, index);
+            size--;
+            return true;
+        }
+        int page = findPage(id);
+        long[] ids = new Decoder(store.get(pageIds[page]), 0).nextIds(counts[page]);
+        int index = Arrays.binarySearch(ids, id);
+        if (index < 0) {
+            return false;
+        }
+        ids = removed(ids, index);
+        size--;
+        if (ids.length == 0) {
+            store.release(pageIds[page]);
+            removePage(page);
+        } else {
+            writePage(page, ids, 0, ids.length);
+        }
+        if (pageCount == 0) {
+            inline = new long[0];
+        } else if (pageCount == 1 && store.get(pageIds[0]).length <= INLINE_BYTES / 2) {
+            // move back inline, with some slack so that a list does not move
+            // back and forth on every update
+            inline = new Decoder(store.get(pageIds[0]), 0).nextIds(counts[0]);
+            store.release(pageIds[0]);
+            removePage(0);
+        }
+        return true;
+    }
+
+    /**
+     * Release all overflow pages of the list.
+     */
+    void clear() {
+        for (int i = 0; i < pageCount; i++) {
+            store.release(pageIds[i]);
+        }
+        pageCount = 0;
+        inline = new long[0];
+        size = 0;
+    }
+
+    /**
+     * Iterate over the ids in ascending order. Overflow pages are decoded one
+     * at a time. The list must not be modified during the iteration.
+     */
+    PrimitiveIterator.OfLong iterator() {
+        return new PrimitiveIterator.OfLong() {
+
+            private long[] ids = inline != null ? inline : new long[0];
+
+            private int index = 0;
+
+            private int page = 0;
+
+            @Override
+            public boolean hasNext() {
+                while (index == ids.length && inline == null && page < pageCount) {
+                    ids = new Decoder(store.get(pageIds[page]), 0).nextIds(counts[page]);
+                    index = 0;
+                    page++;
+                }
+                return index < ids.length;
+            }
+
+            @Override
+            public long nextLong() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return ids[index++];
+            }
+        };
+    }
+
+    private void moveToPages(long[] ids) {
+        inline = null;
+        pageIds = new int[4];
+        firstIds = new long[4];
+        counts = new int[4];
+        pageCount = 0;
+        int from = 0;
+        while (from < ids.length) {
+            // fill pages up to half so that inserts do not split right away
+            int to = from + 1;
+            int bytes = encodedSize(ids, from, to);
+            while (to < ids.length && bytes + varintSize(ids[to] - ids[to - 1]) <= PAGE_BYTES / 2) {
+                bytes += varintSize(ids[to] - ids[to - 1]);
+                to++;
+            }
+            insertPage(pageCount, store.allocate(new byte[0]));
+            writePage(pageCount - 1, ids, from, to);
+            from = to;
+        }
+    }
+
+    /**
+     * @return The last page whose first id is not greater than the id, or
+     * the first page.
+     */
+    private int findPage(long id) {
+        int low = 0;
+        int high = pageCount - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (firstIds[mid] <= id) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    private void writePage(int page, long[] ids, int from, int to) {
+        Encoder out = new Encoder();
+        out.putIds(ids, from, to);
+        store.set(pageIds[page], out.toArray());
+        firstIds[page] = ids[from];
+        counts[page] = to - from;
+    }
+
+    private void insertPage(int page, int pageId) {
+        if (pageCount == pageIds.length) {
+            pageIds = Arrays.copyOf(pageIds, 2 * pageCount);
+            firstIds = Arrays.copyOf(firstIds, 2 * pageCount);
+            counts = Arrays.copyOf(counts, 2 * pageCount);
+        }
+        System.arraycopy(pageIds, page, pageIds, page + 1, pageCount - page);
+        System.arraycopy(firstIds, page, firstIds, page + 1, pageCount - page);
+        System.arraycopy(counts, page, counts, page + 1, pageCount - page);
+        pageIds[page] = pageId;
+        pageCount++;
+    }
+
+    private void removePage(int page) {
+        System.arraycopy(pageIds, page + 1, pageIds, page, pageCount - page - 1);
+        System.arraycopy(firstIds, page + 1, firstIds, page, pageCount - page - 1);
+        System.arraycopy(counts, page + 1, counts, page, pageCount - page - 1);
+        pageCount--;
+    }
+
+    /**
+     * @return A copy of the sorted ids with the id inserted, or {null} if the
+     * id is contained already.
+     */
+    private static long[] inserted(long[] ids, long id) {
+        int index = Arrays.binarySearch(ids, id);
+        if (index >= 0) {
+            return null;
+        }
+        index = -index - 1;
+        long[] result = new long[ids.length + 1];
+        System.arraycopy(ids, 0, result, 0, index);
+        result[index] = id;
+        System.arraycopy(ids, index, result, index + 1, ids.length - index);
+        return result;
+    }
+
+    private static long[] removed(long[] ids, int index) {
+        long[] result = new long[ids.length - 1];
+        System.arraycopy(ids, 0, result, 0, index);
+        System.arraycopy(ids, index + 1, result, index, ids.length - index - 1);
+        return result;
+    }
+
+    private static int encodedSize(long[] ids, int from, int to) {
+        int bytes = 0;
+        long previous = 0;
+        for (int i = from; i < to; i++) {
+            bytes += varintSize(ids[i] - previous);
+            previous = ids[i];
+        }
+        return bytes;
+    }
+
+    private static int varintSize(long value) {
+        return Math.max(1, (64 - Long.numberOfLeadingZeros(value) + 6) / 7);
+    }
+
+    private static final class Encoder {
+
+        private byte[] bytes = new byte[16];
+
+        private int length = 0;
+
+        void put(int value) {
+            if (length == bytes.length) {
+                bytes = Arrays.copyOf(bytes, 2 * length);
+            }
+            bytes[length++] = (byte) value;
+        }
+
+        void putVarint(long value) {
+            while ((value & ~0x7FL) != 0) {
+                put((int) (value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            put((int) value);
+        }
+
+        /**
+         * Write the first id and the gaps to the following ids.
+         */
+        void putIds(long[] ids, int from, int to) {
+            long previous = 0;
+            for (int i = from; i < to; i++) {
+                putVarint(ids[i] - previous);
+                previous = ids[i];
+            }
+        }
+
+        byte[] toArray() {
+            return Arrays.copyOf(bytes, length);
+        }
+    }
+
+    private static final class Decoder {
+
+        private final byte[] bytes;
+
+        private int position;
+
+        Decoder(byte[] bytes, int position) {
+            this.bytes = bytes;
+            this.position = position;
+        }
+
+        long next() {
+            long value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = bytes[position++];
+                value |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            return value;
+        }
+
+        long[] nextIds(int count) {
+            long[] ids = new long[count];
+            long previous = 0;
+            for (int i = 0; i < count; i++) {
+                previous += next();
+                ids[i] = previous;
+            }
+            return ids;
+        }
+    }
+}
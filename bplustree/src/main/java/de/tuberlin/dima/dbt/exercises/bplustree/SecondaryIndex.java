@@ -0,0 +1,150 @@
+package de.tuberlin.dima.dbt.exercises.bplustree;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.PrimitiveIterator;
+import java.util.function.Function;
+
+/**
+ * Secondary index of an {IndexedBPlusTree}, which maps an attribute of the
+ * values back to the keys of the tree.
+ * <p>
+ * The attribute is derived from a value by the extractor of the index; a
+ * value whose attribute is {null} is not indexed. The index is a
+ * {BPlusMultiMap} from the attribute to the keys with that attribute. It is
+ * built in bulk from a scan of the tree and then kept in sync by the
+ * {IndexedBPlusTree}.
+ * <p>
+ * {count} and {keys} are covering: they are answered from the index alone.
+ * {lookup} is not covering, as the index does not store any part of the
+ * values; it descends into the tree a second time to fetch them, in key
+ * order, so that keys in the same leaf share one descent (see
+ * {BPlusTree.lookupAll}).
+ */
+public class SecondaryIndex {
+
+    private final BPlusTree tree;
+
+    private final Function<String, Integer> extractor;
+
+    private final BPlusMultiMap index;
+
+    SecondaryIndex(BPlusTree tree, Function<String, Integer> extractor) {
+        this.tree = tree;
+        this.extractor = extractor;
+        this.index = new BPlusMultiMap(new BPlusTree(tree.leafCapacity(), tree.innerCapacity()));
+    }
+
+    /**
+     * Index all values of the tree. The (attribute, key) pairs are sorted
+     * first, so that the index is filled in ascending attribute order and
+     * every posting list is written once.
+     */
+    void build() {
+        long[] pairs = new long[tree.size()];
+        int count = 0;
+        Cursor cursor = tree.cursor();
+        for (boolean found = cursor.seekFirst(); found; found = cursor.next()) {
+            Integer attribute = extractor.apply(cursor.value());
+            if (attribute != null) {
+                pairs[count++] = (long) attribute << 32 | id(cursor.key());
+            }
+        }
+        Arrays.sort(pairs, 0, count);
+        int from = 0;
+        while (from < count) {
+            int attribute = (int) (pairs[from] >> 32);
+            int to = from + 1;
+            while (to < count && (int) (pairs[to] >> 32) == attribute) {
+                to++;
+            }
+            long[] ids = new long[to - from];
+            for (int i = from; i < to; i++) {
+                ids[i - from] = pairs[i] & 0xFFFFFFFFL;
+            }
+            index.putAll(attribute, ids);
+            from = to;
+        }
+    }
+
+    /**
+     * @return The attribute of the value, or {null} if the value is {null}
+     * or not indexed.
+     */
+    Integer attribute(String value) {
+        return value == null ? null : extractor.apply(value);
+    }
+
+    /**
+     * Update the index after the attribute of the key changed from
+     * {oldAttribute} to {newAttribute}, either of which may be {null}.
+     */
+    void update(Integer key, Integer oldAttribute, Integer newAttribute) {
+        if (Objects.equals(oldAttribute, newAttribute)) {
+            return;
+        }
+        if (oldAttribute != null) {
+            index.remove(oldAttribute, id(key));
+        }
+        if (newAttribute != null) {
+            index.put(newAttribute, id(key));
+        }
+    }
+
+    /**
+     * Covering count, which does not access the tree.
+     *
+     * @return The number of keys whose value has the attribute.
+     */
+    public int count(Integer attribute) {
+        return index.count(attribute);
+    }
+
+    /**
+     * Covering lookup of the keys, which does not access the tree.
+     *
+     * @return The keys whose value has the attribute, in ascending order.
+     */
+    public int[] keys(Integer attribute) {
+        int[] keys = new int[index.count(attribute)];
+        PrimitiveIterator.OfLong ids = index.get(attribute);
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = (int) ids.nextLong();
+        }
+        // the ids order negative keys after the positive ones
+        Arrays.sort(keys);
+        return keys;
+    }
+
+    /**
+     * Lookup of the keys followed by a second descent into the tree for
+     * their values. Use {keys} if the keys suffice.
+     *
+     * @return The key/value pairs whose value has the attribute, in ascending
+     * key order.
+     */
+    public List<Map.Entry<Integer, String>> lookup(Integer attribute) {
+        int[] keys = keys(attribute);
+        List<Integer> sorted = new ArrayList<>(keys.length);
+        for (int key : keys) {
+            sorted.add(key);
+        }
+        List<String> values = tree.lookupAll(sorted);
+        List<Map.Entry<Integer, String>> entries = new ArrayList<>(keys.length);
+        for (int i = 0; i < keys.length; i++) {
+            entries.add(new AbstractMap.SimpleImmutableEntry<>(keys[i], values.get(i)));
+        }
+        return entries;
+    }
+
+    /**
+     * Map a key to a value id of the multimap, which must not be negative.
+     */
+    private static long id(int key) {
+        return key & 0xFFFFFFFFL;
+    }
+}
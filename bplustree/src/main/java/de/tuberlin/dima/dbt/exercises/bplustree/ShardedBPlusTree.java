@@ -0,0 +1,525 @@
+package de.tuberlin.dima.dbt.exercises.bplustree;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Range-partitioned collection of independent B+ trees.
+ * <p>
+ * Each shard owns the keys from its lower bound (inclusive) up to the lower
+ * bound of the next shard (exclusive) and is served by its own
+ * single-threaded executor, so every tree has a single writer and needs no
+ * latching. Requests are routed to the shard that owns the key; range scans
+ * are run on all overlapping shards in parallel and concatenated in key
+ * order.
+ * <p>
+ * The shards are rebalanced online by {rebalance}, which runs automatically
+ * after every {interval} operations. It compares the operations each shard
+ * has served since the previous comparison with the average over all
+ * shards, once there are at least {MIN_SAMPLE} per shard on average. A shard
+ * with more than {HOT_FACTOR} times the average is split in half, as long as
+ * there are fewer than {maxShards} shards; two neighbouring shards with less
+ * than {COLD_FACTOR} times the average together are merged into one. Steady
+ * load that is spread evenly over the shards thus leaves them as they are,
+ * and a range that was hot once gives its shards back when the load moves
+ * on.
+ * <p>
+ * Splits and merges run on the executors of the shards involved between
+ * regular requests. Requests that were queued for keys that moved to another
+ * shard are forwarded to it.
+ */
+public class ShardedBPlusTree implements AutoCloseable {
+
+    /**
+     * Share of the average load above which a shard is split.
+     */
+    static final double HOT_FACTOR = 1.5;
+
+    /**
+     * Share of the average load below which two neighbouring shards are
+     * merged.
+     */
+    static final double COLD_FACTOR = 0.5;
+
+    /**
+     * Operations per shard on average that {rebalance} waits for before it
+     * compares the shards, so that noise in small samples does not split or
+     * merge shards.
+     */
+    static final long MIN_SAMPLE = 256;
+
+    private class Shard {
+
+        /**
+         * Smallest key of the shard, or {null} for the first shard.
+         */
+        final Integer lowerBound;
+
+        /**
+         * Smallest key of the next shard, or {null} for the last shard. Only
+         * changed on the shard's executor.
+         */
+        volatile Integer upperBound;
+
+        /**
+         * Only used on the shard's executor.
+         */
+        BPlusTree tree;
+
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+        /**
+         * Set on the shard's executor once the shard is being merged into its
+         * left neighbour; it does not own any keys from then on.
+         */
+        volatile boolean retiring = false;
+
+        /**
+         * Completed once the shard has been merged into its left neighbour.
+         */
+        final CompletableFuture<Void> retired = new CompletableFuture<>();
+
+        /**
+         * Requests routed to the shard so far. Counted when they are routed
+         * rather than when they are served, so that the length of the queue
+         * of the executor does not distort the load.
+         */
+        final AtomicLong operations = new AtomicLong();
+
+        volatile int size = 0;
+
+        /**
+         * Value of {operations} at the previous comparison of the shards, or
+         * -1 if the shard did not exist yet. Guarded by {shardsLock}.
+         */
+        long checked;
+
+        /**
+         * Whether a split or merge of the shard is pending. Guarded by
+         * {shardsLock}.
+         */
+        boolean busy = false;
+
+        Shard(Integer lowerBound, Integer upperBound, BPlusTree tree, long checked) {
+            this.lowerBound = lowerBound;
+            this.upperBound = upperBound;
+            this.tree = tree;
+            this.checked = checked;
+        }
+
+        boolean owns(Integer key) {
+            Integer upper = upperBound;
+            return !retiring && (upper == null || key.compareTo(upper) < 0);
+        }
+    }
+
+    private final int capacity;
+
+    private final long interval;
+
+    private final int maxShards;
+
+    private final AtomicLong totalOperations = new AtomicLong();
+
+    /**
+     * Shards ordered by their lower bounds. The list is replaced as a whole
+     * when shards are split or merged.
+     */
+    private volatile List<Shard> shards;
+
+    private final ReentrantLock shardsLock = new ReentrantLock();
+
+    /**
+     * Splits that have been started but not finished. Guarded by
+     * {shardsLock}.
+     */
+    private int pendingSplits = 0;
+
+    /**
+     * Completed once all splits and merges started so far are done. Guarded
+     * by {shardsLock}.
+     */
+    private CompletableFuture<Void> changes = CompletableFuture.completedFuture(null);
+
+    private boolean closing = false;
+
+    /**
+     * Create a tree with one shard per range between the given boundaries.
+     *
+     * @param boundaries Ascending lower bounds of all shards but the first.
+     * @param capacity   Capacity of the trees of the shards.
+     * @param interval   Number of operations over all shards after which the
+     *                   shards are rebalanced, or 0 to only rebalance them
+     *                   on {rebalance}.
+     * @param maxShards  Number of shards above which no shard is split.
+     */
+    public ShardedBPlusTree(List<Integer> boundaries, int capacity, long interval, int maxShards) {
+        this.capacity = capacity;
+        this.interval = interval;
+        this.maxShards = maxShards;
+        List<Shard> initial = new ArrayList<>();
+        for (int i = 0; i <= boundaries.size(); i++) {
+            Integer lower = i == 0 ? null : boundaries.get(i - 1);
+            Integer upper = i == boundaries.size() ? null : boundaries.get(i);
+            initial.add(new Shard(lower, upper, new BPlusTree(capacity), 0));
+        }
+        this.shards = initial;
+    }
+
+    /**
+     * @return The number of shards.
+     */
+    public int shardCount() {
+        return shards.size();
+    }
+
+    /**
+     * Lookup the value stored under the given key.
+     */
+    public CompletableFuture<String> lookup(Integer key) {
+        return run(key, shard -> shard.tree.lookup(key));
+    }
+
+    /**
+     * Insert the key/value pair.
+     */
+    public CompletableFuture<Void> insert(Integer key, String value) {
+        return run(key, shard -> {
+            shard.tree.insert(key, value);
+            shard.size++;
+            return null;
+        });
+    }
+
+    /**
+     * Delete the key/value pair.
+     *
+     * @return A future for the original value, or {null} if the key does not
+     * exist.
+     */
+    public CompletableFuture<String> delete(Integer key) {
+        return run(key, shard -> {
+            String value = shard.tree.delete(key);
+            if (value != null) {
+                shard.size--;
+            }
+            return value;
+        });
+    }
+
+    /**
+     * Collect all key/value pairs with {from <= key < to} in ascending key
+     * order. A {null} bound means the range is unbounded on that side.
+     */
+    public CompletableFuture<List<Map.Entry<Integer, String>>> scan(Integer from, Integer to) {
+        List<CompletableFuture<List<Map.Entry<Integer, String>>>> parts = new ArrayList<>();
+        List<Shard> current = shards;
+        for (int i = 0; i < current.size(); i++) {
+            Shard shard = current.get(i);
+            if (to != null && shard.lowerBound != null && shard.lowerBound.compareTo(to) >= 0) {
+                break;
+            }
+            // the bounds in the list do not change, unlike {upperBound}
+            Integer upper = i + 1 < current.size() ? current.get(i + 1).lowerBound : null;
+            if (from != null && upper != null && upper.compareTo(from) <= 0) {
+                continue;
+            }
+            parts.add(scanShard(shard, from, upper == null || (to != null && to.compareTo(upper) < 0) ? to : upper));
+        }
+        return CompletableFuture.allOf(parts.toArray(new CompletableFuture<?>[0])).thenApply(ignored -> {
+            List<Map.Entry<Integer, String>> result = new ArrayList<>();
+            parts.forEach(part -> result.addAll(part.join()));
+            return result;
+        });
+    }
+
+    /**
+     * Scan the part of the range that the shard owned when the scan was
+     * planned. Keys that have moved to another shard since then are scanned
+     * there afterwards.
+     */
+    private CompletableFuture<List<Map.Entry<Integer, String>>> scanShard(Shard shard, Integer from, Integer to) {
+        return supply(shard, () -> {
+            if (shard.retiring) {
+                return null;
+            }
+            List<Map.Entry<Integer, String>> entries = new ArrayList<>();
+            // a shard that absorbed its right neighbour owns more than planned
+            shard.tree.scan(from, to, (key, value) -> entries.add(new AbstractMap.SimpleImmutableEntry<>(key, value)));
+            return new AbstractMap.SimpleImmutableEntry<>(shard.upperBound, entries);
+        }).thenCompose(scanned -> {
+            if (scanned == null) {
+                // merged into the left neighbour, which owns all keys now
+                Integer start = from == null || shard.lowerBound.compareTo(from) > 0 ? shard.lowerBound : from;
+                return shard.retired.thenCompose(ignored -> scan(start, to));
+            }
+            Integer upper = scanned.getKey();
+            if (upper == null || (to != null && upper.compareTo(to) >= 0)) {
+                return CompletableFuture.completedFuture(scanned.getValue());
+            }
+            // split after the scan was planned
+            Integer movedFrom = from == null || upper.compareTo(from) > 0 ? upper : from;
+            return scan(movedFrom, to).thenApply(moved -> {
+                List<Map.Entry<Integer, String>> entries = scanned.getValue();
+                entries.addAll(moved);
+                return entries;
+            });
+        });
+    }
+
+    /**
+     * Split hot shards and merge cold neighbours, based on the operations
+     * each shard has served since the previous comparison. Nothing happens
+     * until there are {MIN_SAMPLE} operations per shard on average. Shards
+     * with a split or merge still pending and shards created since the
+     * previous comparison are left alone.
+     *
+     * @return A future that completes once the started splits and merges are
+     * done.
+     */
+    public CompletableFuture<Void> rebalance() {
+        List<CompletableFuture<Void>> started = new ArrayList<>();
+        shardsLock.lock();
+        try {
+            if (closing) {
+                return CompletableFuture.completedFuture(null);
+            }
+            List<Shard> current = shards;
+            long[] served = new long[current.size()];
+            long[] rates = new long[current.size()];
+            long total = 0;
+            int measured = 0;
+            for (int i = 0; i < current.size(); i++) {
+                Shard shard = current.get(i);
+                served[i] = shard.operations.get();
+                rates[i] = shard.checked < 0 ? -1 : served[i] - shard.checked;
+                if (rates[i] >= 0) {
+                    total += rates[i];
+                    measured++;
+                }
+            }
+            if (total < MIN_SAMPLE * Math.max(measured, 1)) {
+                // keep counting until the sample is large enough
+                return CompletableFuture.completedFuture(null);
+            }
+            for (int i = 0; i < current.size(); i++) {
+                current.get(i).checked = served[i];
+            }
+            double average = (double) total / measured;
+            int count = current.size() + pendingSplits;
+            for (int i = 0; i < current.size() && count < maxShards; i++) {
+                Shard shard = current.get(i);
+                if (!shard.busy && rates[i] > HOT_FACTOR * average && shard.size >= 2) {
+                    shard.busy = true;
+                    pendingSplits++;
+                    count++;
+                    started.add(CompletableFuture.runAsync(() -> split(shard), shard.executor));
+                }
+            }
+            for (int i = 0; i + 1 < current.size(); i++) {
+                Shard left = current.get(i);
+                Shard right = current.get(i + 1);
+                if (!left.busy && !right.busy && rates[i] >= 0 && rates[i + 1] >= 0
+                        && rates[i] + rates[i + 1] < COLD_FACTOR * average) {
+                    left.busy = true;
+                    right.busy = true;
+                    started.add(merge(left, right));
+                    i++;
+                }
+            }
+            CompletableFuture<Void> done = CompletableFuture.allOf(started.toArray(new CompletableFuture<?>[0]));
+            changes = changes.isDone() ? done : CompletableFuture.allOf(changes, done);
+            return done;
+        } finally {
+            shardsLock.unlock();
+        }
+    }
+
+    /**
+     * Wait for pending splits and merges and shut down the executors of all
+     * shards.
+     */
+    @Override
+    public void close() {
+        CompletableFuture<Void> pending;
+        shardsLock.lock();
+        try {
+            closing = true;
+            pending = changes;
+        } finally {
+            shardsLock.unlock();
+        }
+        pending.exceptionally(failure -> null).join();
+        shards.forEach(shard -> shard.executor.shutdown());
+    }
+
+    private <T> CompletableFuture<T> run(Integer key, Function<Shard, T> operation) {
+        Shard shard = route(key);
+        shard.operations.incrementAndGet();
+        if (interval > 0 && totalOperations.incrementAndGet() % interval == 0) {
+            rebalance();
+        }
+        return supply(shard, () -> {
+            if (!shard.owns(key)) {
+                // the keys moved after the request was routed
+                return null;
+            }
+            return new Result<>(operation.apply(shard));
+        }).thenCompose(result -> {
+            if (result != null) {
+                return CompletableFuture.completedFuture(result.value);
+            }
+            // a retiring shard still covers its keys in the routing table
+            return shard.retiring ? shard.retired.thenCompose(ignored -> run(key, operation)) : run(key, operation);
+        });
+    }
+
+    /**
+     * Run the task on the executor of the shard.
+     *
+     * @return A future for the result, or for {null} if the shard has been
+     * merged into its neighbour and its executor shut down.
+     */
+    private static <T> CompletableFuture<T> supply(Shard shard, Supplier<T> task) {
+        try {
+            return CompletableFuture.supplyAsync(task, shard.executor);
+        } catch (RejectedExecutionException e) {
+            if (!shard.retired.isDone()) {
+                throw e;
+            }
+            return CompletableFuture.completedFuture(null);
+        }
+    }
+
+    /**
+     * Wrapper that distinguishes a {null} result from a forwarded request.
+     */
+    private static class Result<T> {
+
+        final T value;
+
+        Result(T value) {
+            this.value = value;
+        }
+    }
+
+    private Shard route(Integer key) {
+        List<Shard> current = shards;
+        int low = 0;
+        int high = current.size() - 1;
+        // find the last shard whose lower bound is not greater than the key
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (current.get(mid).lowerBound.compareTo(key) <= 0) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return current.get(low);
+    }
+
+    /**
+     * Move the upper half of the keys of the shard into a new shard. Runs on
+     * the executor of the shard.
+     */
+    private void split(Shard shard) {
+        List<Integer> keys = new ArrayList<>();
+        List<String> values = new ArrayList<>();
+        shard.tree.scan(null, null, (key, value) -> {
+            keys.add(key);
+            values.add(value);
+        });
+        int middle = keys.size() / 2;
+        Integer boundary = keys.get(middle);
+        while (middle > 0 && keys.get(middle - 1).equals(boundary)) {
+            // all copies of a duplicate key must stay in the same shard
+            middle--;
+        }
+        Shard upper = null;
+        if (middle > 0) {
+            upper = new Shard(boundary, shard.upperBound, build(keys, values, middle, keys.size()), -1);
+            upper.size = keys.size() - middle;
+            shard.tree = build(keys, values, 0, middle);
+            shard.size = middle;
+        }
+        shardsLock.lock();
+        try {
+            shard.busy = false;
+            pendingSplits--;
+            if (upper == null) {
+                return;
+            }
+            List<Shard> updated = new ArrayList<>(shards);
+            updated.add(updated.indexOf(shard) + 1, upper);
+            shards = updated;
+        } finally {
+            shardsLock.unlock();
+        }
+        // from now on requests for the upper keys are forwarded
+        shard.upperBound = boundary;
+    }
+
+    /**
+     * Merge the right shard into its left neighbour. The right shard stops
+     * serving requests and hands over its entries on its own executor, and
+     * the left shard takes them over on its executor. Requests for the keys
+     * of the right shard wait in between.
+     */
+    private CompletableFuture<Void> merge(Shard left, Shard right) {
+        return CompletableFuture.supplyAsync(() -> {
+            right.retiring = true;
+            List<Map.Entry<Integer, String>> entries = new ArrayList<>();
+            right.tree.scan(null, null, (key, value) -> entries.add(new AbstractMap.SimpleImmutableEntry<>(key, value)));
+            return entries;
+        }, right.executor).thenAcceptAsync(moved -> {
+            List<Integer> keys = new ArrayList<>();
+            List<String> values = new ArrayList<>();
+            left.tree.scan(null, null, (key, value) -> {
+                keys.add(key);
+                values.add(value);
+            });
+            for (Map.Entry<Integer, String> entry : moved) {
+                keys.add(entry.getKey());
+                values.add(entry.getValue());
+            }
+            left.tree = build(keys, values, 0, keys.size());
+            left.size = keys.size();
+            shardsLock.lock();
+            try {
+                left.busy = false;
+                List<Shard> updated = new ArrayList<>(shards);
+                updated.remove(right);
+                shards = updated;
+            } finally {
+                shardsLock.unlock();
+            }
+            left.upperBound = right.upperBound;
+            right.retired.complete(null);
+            right.executor.shutdown();
+        }, left.executor);
+    }
+
+    /**
+     * Build a tree from the sorted entries between {from} (inclusive) and
+     * {to} (exclusive).
+     */
+    private BPlusTree build(List<Integer> keys, List<String> values, int from, int to) {
+        BPlusTree tree = new BPlusTree(capacity);
+        tree.setSplitPolicy(SplitPolicy.appendOptimized());
+        for (int i = from; i < to; i++) {
+            tree.insert(keys.get(i), values.get(i));
+        }
+        return tree;
+    }
+}
@@ -0,0 +1,237 @@
+package de.tuberlin.dima.dbt.exercises.bplustree;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.function.BiConsumer;
+
+/**
+ * B+ tree with a memory budget for its leaves.
+ * <p>
+ * Inner nodes always stay in memory. Once the estimated size of the resident
+ * leaves exceeds the budget, the least recently used leaves are written to a
+ * spill file and only reloaded when an operation needs them again. A tree
+ * that outgrows its budget thus becomes slower instead of running out of
+ * memory.
+ * <p>
+ * Leaves are only evicted between operations on the tree, never in the
+ * middle of one. The tree can also be used directly, e.g., for cursors or a
+ * {BPlusTreeMap}; evicted leaves are reloaded transparently, but the budget
+ * is only enforced again by the next operation of this class or {evict}.
+ * This class is not thread-safe.
+ * <p>
+ * Scans read the evicted leaves ahead of the current one asynchronously, so
+ * that the consumer and the disk work at the same time. Every evicted leaf
+ * keeps a Bloom filter of its keys, so that most lookups of missing keys do
+ * not have to read the leaf.
+ */
+public class SpillingBPlusTree implements AutoCloseable {
+
+    private static final int MIN_READ_AHEAD = 1;
+
+    private static final int MAX_READ_AHEAD = 64;
+
+    /**
+     * Bits per key of the filters of the evicted leaves, for a false
+     * positive rate of about 1%.
+     */
+    public static final int DEFAULT_FILTER_BITS_PER_KEY = 10;
+
+    private final BPlusTree tree;
+
+    private final LeafSpill spill;
+
+    /**
+     * Spill the leaves of the tree into the given file, which is replaced if
+     * it exists and deleted by {close}.
+     *
+     * @param budget Memory budget for the resident leaves in bytes.
+     */
+    public SpillingBPlusTree(BPlusTree tree, Path spillFile, long budget) throws IOException {
+        this(tree, spillFile, budget, DEFAULT_FILTER_BITS_PER_KEY);
+    }
+
+    /**
+     * @param filterBitsPerKey Size of the Bloom filters that let lookups of
+     *                         missing keys skip evicted leaves, or 0 to
+     *                         disable them.
+     */
+    public SpillingBPlusTree(BPlusTree tree, Path spillFile, long budget, int filterBitsPerKey)
+            throws IOException {
+        this.tree = tree;
+        this.spill = new LeafSpill(spillFile, budget, filterBitsPerKey);
+        for (LeafNode leaf = tree.findLeafNode(null); leaf != null; leaf = (LeafNode) leaf.getRightLink()) {
+            spill.admit(leaf);
+        }
+        evict();
+    }
+
+    public BPlusTree tree() {
+        return tree;
+    }
+
+    public String lookup(Integer key) {
+        spill.setReading(true);
+        try {
+            return tree.lookup(key);
+        } finally {
+            spill.setReading(false);
+            evict();
+        }
+    }
+
+    public void insert(Integer key, String value) {
+        try {
+            tree.insert(key, value);
+        } finally {
+            evict();
+        }
+    }
+
+    /**
+     * @see BPlusTree#put
+     */
+    public String put(Integer key, String value) {
+        try {
+            return tree.put(key, value);
+        } finally {
+            evict();
+        }
+    }
+
+    public String delete(Integer key) {
+        try {
+            return tree.delete(key);
+        } finally {
+            evict();
+        }
+    }
+
+    /**
+     * Pass all key/value pairs with {from <= key < to} to the consumer in
+     * ascending key order, like {BPlusTree.scan}.
+     * <p>
+     * While the consumer processes a leaf, the following leaves are read
+     * ahead. The number of leaves read ahead doubles whenever the scan has
+     * to wait for a leaf, up to {MAX_READ_AHEAD}, and shrinks by one
+     * whenever a leaf is ready in time, so that a slow consumer does not
+     * keep many read-ahead leaves in memory. Leaves are evicted during the
+     * scan, so that a scan over more leaves than fit into the budget stays
+     * within it.
+     */
+    public void scan(Integer from, Integer to, BiConsumer<Integer, String> consumer) {
+        LeafNode leaf = tree.findLeafNode(from);
+        // last leaf that has been read ahead, or the current leaf
+        LeafNode lastAhead = leaf;
+        int ahead = 0;
+        int window = MIN_READ_AHEAD;
+        try {
+            while (leaf != null) {
+                while (ahead < window && readsAhead(lastAhead, to)) {
+                    lastAhead = (LeafNode) lastAhead.getRightLink();
+                    spill.prefetch(lastAhead);
+                    ahead++;
+                }
+                if (spill.isReady(leaf)) {
+                    window = Math.max(MIN_READ_AHEAD, window - 1);
+                } else {
+                    window = Math.min(MAX_READ_AHEAD, 2 * window);
+                }
+                int size;
+                Integer[] keys;
+                String[] values;
+                spill.setReading(true);
+                try {
+                    size = leaf.size();
+                    keys = leaf.getKeys();
+                    values = leaf.getValues();
+                } finally {
+                    spill.setReading(false);
+                }
+                for (int i = from == null ? 0 : leaf.lowerBound(from, size); i < size; i++) {
+                    if (to != null && keys[i].compareTo(to) >= 0) {
+                        return;
+                    }
+                    consumer.accept(keys[i], values[i]);
+                }
+                // the arrays of the leaf are not used anymore
+                evict();
+                leaf = (LeafNode) leaf.getRightLink();
+                if (ahead > 0) {
+                    ahead--;
+                } else {
+                    lastAhead = leaf;
+                }
+            }
+        } finally {
+            spill.cancelPrefetches();
+            evict();
+        }
+    }
+
+    /**
+     * @return Whether the scan may still need the right sibling of the leaf.
+     * A wrong guess only costs a read.
+     */
+    private static boolean readsAhead(LeafNode leaf, Integer to) {
+        Integer highKey = leaf.getHighKey();
+        return leaf.getRightLink() != null && (to == null || highKey == null || highKey.compareTo(to) < 0);
+    }
+
+    /**
+     * Evict least recently used leaves until the resident leaves fit into
+     * the budget again.
+     */
+    public void evict() {
+        try {
+            spill.evict();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @return The estimated size of the resident leaves in bytes.
+     */
+    public long residentBytes() {
+        return spill.residentBytes();
+    }
+
+    /**
+     * @return The number of leaves that are currently in the spill file.
+     */
+    public int evictedLeaves() {
+        return spill.evictedLeaves();
+    }
+
+    /**
+     * @return The number of leaves that scans have read ahead.
+     */
+    long prefetchesIssued() {
+        return spill.prefetchesIssued();
+    }
+
+    /**
+     * @return The number of leaves read ahead that a scan then used.
+     */
+    long prefetchesUsed() {
+        return spill.prefetchesUsed();
+    }
+
+    /**
+     * @return The number of leaves that the current scan has read ahead and
+     * not reached yet.
+     */
+    int pendingPrefetches() {
+        return spill.pendingPrefetches();
+    }
+
+    /**
+     * Reload all evicted leaves and delete the spill file. The tree can be
+     * used as a regular tree afterwards.
+     */
+    @Override
+    public void close() throws IOException {
+        spill.close();
+    }
+}
@@ -0,0 +1,91 @@
+package de.tuberlin.dima.dbt.exercises.bplustree;
+
+/**
+ * Strategy that decides where an overflowing leaf is split.
+ * <p>
+ * When a leaf overflows it holds {capacity + 1} keys. The split index is the
+ * number of keys that stay in the original (left) leaf; the remaining keys
+ * move to the new right sibling. The split index must be between 1 and
+ * {size - 1}.
+ */
+public interface SplitPolicy {
+
+    /**
+     * Compute the split index for an overflowing leaf.
+     *
+     * @param size        Number of keys in the leaf, including the new key.
+     * @param insertIndex Position at which the new key was inserted.
+     * @param rightmost   Whether the leaf is the rightmost leaf of the tree.
+     */
+    int splitIndex(int size, int insertIndex, boolean rightmost);
+
+    /**
+     * Called for every insertion into a leaf, before a possible split.
+     */
+    default void recordInsert(int size, int insertIndex) {
+    }
+
+    /**
+     * Split in the middle, i.e., {size / 2} keys stay in the left leaf.
+     */
+    static SplitPolicy midpoint() {
+        return (size, insertIndex, rightmost) -> size / 2;
+    }
+
+    /**
+     * Keep all old keys in the left leaf and start a new rightmost leaf
+     * when appending to the end of the tree; split in the middle otherwise.
+     */
+    static SplitPolicy rightmost() {
+        return (size, insertIndex, rightmost) ->
+                rightmost && insertIndex == size - 1 ? size - 1 : size / 2;
+    }
+
+    /**
+     * Split 90/10 when appending to the end of the tree; split in the middle
+     * otherwise.
+     */
+    static SplitPolicy appendOptimized() {
+        return (size, insertIndex, rightmost) ->
+                rightmost && insertIndex == size - 1 ? skewedIndex(size, 0.9) : size / 2;
+    }
+
+    /**
+     * Split 90/10 when most recent insertions went to the end of their leaf,
+     * and in the middle otherwise.
+     */
+    static SplitPolicy adaptive() {
+        return new AdaptiveSplitPolicy();
+    }
+
+    static int skewedIndex(int size, double ratio) {
+        return Math.max(1, Math.min(size - 1, (int) Math.ceil(size * ratio)));
+    }
+
+    /**
+     * Keeps an exponentially decaying average of how many insertions append
+     * to the end of a leaf.
+     */
+    class AdaptiveSplitPolicy implements SplitPolicy {
+
+        private static final double DECAY = 0.95;
+
+        private static final double THRESHOLD = 0.8;
+
+        private double appendRatio = 0.0;
+
+        @Override
+        public int splitIndex(int size, int insertIndex, boolean rightmost) {
+            if (appendRatio >= THRESHOLD && insertIndex == size - 1) {
+                return skewedIndex(size, 0.9);
+            }
+            return size / 2;
+        }
+
+        @Override
+        public void recordInsert(int size, int insertIndex) {
+            double append = insertIndex == size - 1 ? 1.0 : 0.0;
+            appendRatio = DECAY * appendRatio + (1 - DECAY) * append;
+        }
+    }
+}
@@ -0,0 +1,408 @@
+package de.tuberlin.dima.dbt.exercises.bplustree;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Append-only log of the values of a {ValueLogBPlusTree}.
+ * <p>
+ * The log is split into segment files of about {segmentBytes} bytes. Every
+ * put and delete is appended as a record with the layout of the records of
+ * the {MutationLog}: its length, a payload with the operation, the key and
+ * the value, and the CRC32C checksum of the payload. The tree stores a
+ * handle instead of the value, which holds the segment and position of the
+ * record and the length of the value in 12 characters.
+ * <p>
+ * A replaced value, a deleted value and the record of the delete itself
+ * stay in their segments as garbage. {collect} copies the live records of
+ * segments with much garbage to the end of the log, updates their handles
+ * in the tree and deletes the segments.
+ * <p>
+ * Opening a directory that already holds segments replays them in order
+ * into the tree, so the log is also the only persistent copy of the tree.
+ */
+final class ValueLog implements AutoCloseable {
+
+    /**
+     * Length, operation, key and checksum of a record.
+     */
+    private static final int RECORD_OVERHEAD = 1 + 3 * Integer.BYTES;
+
+    private static final int HANDLE_LENGTH = Long.BYTES + Integer.BYTES;
+
+    /**
+     * The offset of a record in the log is the number of its segment
+     * shifted by this many bits, plus its position in the segment.
+     */
+    private static final int SEGMENT_SHIFT = 32;
+
+    private static final String SEGMENT_PREFIX = "values-";
+
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private static final class Segment {
+
+        final Path path;
+
+        final FileChannel channel;
+
+        long bytes = 0;
+
+        long garbage = 0;
+
+        Segment(Path path, StandardOpenOption mode) throws IOException {
+            this.path = path;
+            this.channel = FileChannel.open(path, mode, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+    }
+
+    /**
+     * Sequential reader of the valid records at the start of a segment.
+     */
+    private static final class Records {
+
+        private final DataInputStream in;
+
+        private final long size;
+
+        /**
+         * Position of the current record.
+         */
+        long position = 0;
+
+        /**
+         * Position after the current record, i.e., after the valid records
+         * once {next} returned {false}.
+         */
+        long end = 0;
+
+        byte[] payload;
+
+        Records(Segment segment, long size) throws IOException {
+            // the stream is not closed, which would close the channel
+            FileChannel channel = segment.channel.position(0);
+            this.in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+            this.size = size;
+        }
+
+        /**
+         * @return {false} at the end of the segment or at a torn or
+         * corrupted record.
+         */
+        boolean next() throws IOException {
+            if (size - end < RECORD_OVERHEAD) {
+                return false;
+            }
+            int length = in.readInt();
+            if (length < 1 + Integer.BYTES || length > BPlusTreeSerializer.MAX_RECORD_BYTES
+                    || size - end < length + 2 * Integer.BYTES) {
+                return false;
+            }
+            byte[] bytes = new byte[length];
+            in.readFully(bytes);
+            if (in.readInt() != BPlusTreeSerializer.checksum(bytes, 0, length)) {
+                return false;
+            }
+            payload = bytes;
+            position = end;
+            end += length + 2 * Integer.BYTES;
+            return true;
+        }
+
+        byte operation() {
+            return payload[0];
+        }
+
+        int key() {
+            return ByteBuffer.wrap(payload).getInt(1);
+        }
+
+        int valueLength() {
+            return payload.length - 1 - Integer.BYTES;
+        }
+    }
+
+    private final Path directory;
+
+    private final long segmentBytes;
+
+    private final BPlusTree tree;
+
+    private final TreeMap<Long, Segment> segments = new TreeMap<>();
+
+    private long active = -1;
+
+    /**
+     * Open the log in the directory and put the handles of its values into
+     * the tree, which must be empty. Torn records at the end of a segment,
+     * e.g., after a crash before {sync}, are removed.
+     */
+    ValueLog(Path directory, long segmentBytes, BPlusTree tree) throws IOException {
+        assert segmentBytes > 0 && segmentBytes <= Integer.MAX_VALUE;
+        this.directory = Files.createDirectories(directory);
+        this.segmentBytes = segmentBytes;
+        this.tree = tree;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory,
+                                                                    SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                long number = Long.parseLong(name.substring(SEGMENT_PREFIX.length(),
+                                                            name.length() - SEGMENT_SUFFIX.length()));
+                segments.put(number, new Segment(file, StandardOpenOption.WRITE));
+                active = Math.max(active, number);
+            }
+        }
+        for (Map.Entry<Long, Segment> entry : segments.entrySet()) {
+            replay(entry.getKey(), entry.getValue());
+        }
+        roll();
+    }
+
+    /**
+     * Append the value.
+     *
+     * @return The handle of the value.
+     */
+    String append(Integer key, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer payload = ByteBuffer.allocate(1 + Integer.BYTES + bytes.length);
+        payload.put(MutationLog.INSERT).putInt(key).put(bytes);
+        return append(payload.array());
+    }
+
+    /**
+     * Append the delete of the key, so that a replay does not restore its
+     * last value. The record only matters until {collect} has removed the
+     * older records of the key, and counts as garbage right away.
+     */
+    void delete(Integer key) throws IOException {
+        ByteBuffer payload = ByteBuffer.allocate(1 + Integer.BYTES);
+        payload.put(MutationLog.DELETE).putInt(key);
+        release(append(payload.array()));
+    }
+
+    String read(String handle) throws IOException {
+        long offset = offset(handle);
+        int length = length(handle);
+        Segment segment = segments.get(offset >>> SEGMENT_SHIFT);
+        ByteBuffer record = ByteBuffer.allocate(RECORD_OVERHEAD + length);
+        long position = position(offset);
+        while (record.hasRemaining()) {
+            if (segment.channel.read(record, position + record.position()) < 0) {
+                throw new IOException("Truncated segment " + segment.path);
+            }
+        }
+        int payloadLength = 1 + Integer.BYTES + length;
+        if (record.getInt(0) != payloadLength || record.getInt(Integer.BYTES + payloadLength)
+                != BPlusTreeSerializer.checksum(record.array(), Integer.BYTES, payloadLength)) {
+            throw new IOException("Corrupted record in " + segment.path);
+        }
+        return new String(record.array(), RECORD_OVERHEAD - Integer.BYTES, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Count the record of the handle as garbage.
+     */
+    void release(String handle) {
+        segments.get(offset(handle) >>> SEGMENT_SHIFT).garbage += length(handle) + RECORD_OVERHEAD;
+    }
+
+    /**
+     * Copy the live records of every full segment in which at least the
+     * given share of bytes is garbage to the end of the log and delete the
+     * segment. A value is live if the tree still stores its handle. A delete
+     * is live while its key is absent and an older segment that may hold a
+     * value of the key is kept.
+     *
+     * @return The number of bytes freed.
+     */
+    long collect(double minGarbage) throws IOException {
+        List<Long> candidates = new ArrayList<>();
+        long oldestKept = active;
+        for (Map.Entry<Long, Segment> entry : segments.entrySet()) {
+            Segment segment = entry.getValue();
+            if (entry.getKey() != active && segment.garbage >= minGarbage * segment.bytes) {
+                candidates.add(entry.getKey());
+            } else {
+                oldestKept = Math.min(oldestKept, entry.getKey());
+            }
+        }
+        long freed = 0;
+        for (long number : candidates) {
+            Segment segment = segments.get(number);
+            Records records = new Records(segment, segment.bytes);
+            long copied = 0;
+            while (records.next()) {
+                long offset = number << SEGMENT_SHIFT | records.position;
+                String handle = tree.lookup(records.key());
+                if (records.operation() == MutationLog.DELETE) {
+                    if (handle == null && number > oldestKept) {
+                        release(append(records.payload));
+                        copied += records.end - records.position;
+                    }
+                } else if (handle != null && offset(handle) == offset) {
+                    tree.put(records.key(), append(records.payload));
+                    copied += records.end - records.position;
+                    segment.garbage += records.end - records.position;
+                }
+            }
+            if (records.end != segment.bytes) {
+                throw new IOException("Corrupted record in " + segment.path);
+            }
+            freed += segment.bytes - copied;
+        }
+        // the copies must be durable before the originals are gone
+        sync();
+        for (long number : candidates) {
+            Segment segment = segments.remove(number);
+            segment.channel.close();
+            Files.delete(segment.path);
+        }
+        return freed;
+    }
+
+    /**
+     * @return The size of all segments in bytes.
+     */
+    long bytes() {
+        long bytes = 0;
+        for (Segment segment : segments.values()) {
+            bytes += segment.bytes;
+        }
+        return bytes;
+    }
+
+    /**
+     * @return The bytes of replaced and deleted values and of deletes.
+     */
+    long garbage() {
+        long garbage = 0;
+        for (Segment segment : segments.values()) {
+            garbage += segment.garbage;
+        }
+        return garbage;
+    }
+
+    /**
+     * Force all records to disk, so that they survive a crash and are
+     * replayed when the log is opened again.
+     */
+    void sync() throws IOException {
+        for (Segment segment : segments.values()) {
+            segment.channel.force(false);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            sync();
+        } finally {
+            for (Segment segment : segments.values()) {
+                segment.channel.close();
+            }
+        }
+    }
+
+    /**
+     * Apply the records of an existing segment to the tree and cut off a
+     * torn or corrupted record with everything after it.
+     */
+    private void replay(long number, Segment segment) throws IOException {
+        long size = segment.channel.size();
+        Records records = new Records(segment, size);
+        while (records.next()) {
+            String handle = handle(number << SEGMENT_SHIFT | records.position, records.valueLength());
+            String previous;
+            if (records.operation() == MutationLog.DELETE) {
+                previous = tree.delete(records.key());
+                release(handle);
+            } else {
+                previous = tree.put(records.key(), handle);
+            }
+            segment.bytes = records.end;
+            if (previous != null) {
+                release(previous);
+            }
+        }
+        if (records.end < size) {
+            segment.channel.truncate(records.end);
+        }
+    }
+
+    private String append(byte[] payload) throws IOException {
+        Segment segment = segments.get(active);
+        int length = payload.length + 2 * Integer.BYTES;
+        if (payload.length > BPlusTreeSerializer.MAX_RECORD_BYTES) {
+            throw new IOException("Record exceeds the maximum size of " + BPlusTreeSerializer.MAX_RECORD_BYTES
+                                          + " bytes");
+        }
+        if (segment.bytes > 0 && segment.bytes + length > segmentBytes) {
+            roll();
+            segment = segments.get(active);
+        }
+        ByteBuffer record = ByteBuffer.allocate(length);
+        record.putInt(payload.length).put(payload).putInt(BPlusTreeSerializer.checksum(payload, 0, payload.length));
+        record.flip();
+        while (record.hasRemaining()) {
+            segment.channel.write(record, segment.bytes + record.position());
+        }
+        long offset = active << SEGMENT_SHIFT | segment.bytes;
+        segment.bytes += length;
+        return handle(offset, payload.length - 1 - Integer.BYTES);
+    }
+
+    private void roll() throws IOException {
+        active++;
+        Path path = directory.resolve(String.format("%s%08d%s", SEGMENT_PREFIX, active, SEGMENT_SUFFIX));
+        segments.put(active, new Segment(path, StandardOpenOption.CREATE_NEW));
+    }
+
+    private static long position(long offset) {
+        return offset & (1L << SEGMENT_SHIFT) - 1;
+    }
+
+    /**
+     * Encode the offset of a record and the length of its value with one
+     * character per byte, as {PostingList} encodes its ids.
+     */
+    static String handle(long offset, int length) {
+        char[] chars = new char[HANDLE_LENGTH];
+        for (int i = 0; i < Long.BYTES; i++) {
+            chars[i] = (char) (offset >>> (8 * (Long.BYTES - 1 - i)) & 0xFF);
+        }
+        for (int i = 0; i < Integer.BYTES; i++) {
+            chars[Long.BYTES + i] = (char) (length >>> (8 * (Integer.BYTES - 1 - i)) & 0xFF);
+        }
+        return new String(chars);
+    }
+
+    static long offset(String handle) {
+        long offset = 0;
+        for (int i = 0; i < Long.BYTES; i++) {
+            offset = offset << 8 | handle.charAt(i);
+        }
+        return offset;
+    }
+
+    static int length(String handle) {
+        int length = 0;
+        for (int i = 0; i < Integer.BYTES; i++) {
+            length = length << 8 | handle.charAt(Long.BYTES + i);
+        }
+        return length;
+    }
+}
@@ -0,0 +1,135 @@
+package de.tuberlin.dima.dbt.exercises.bplustree;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.function.Consumer;
+
+/**
+ * B+ tree that keeps its values in a separate {ValueLog}.
+ * <p>
+ * The leaves only store a handle of 12 characters per value, so the number
+ * of entries per leaf, the cost of splits, and the memory that scans over
+ * the keys touch do not depend on the size of the values. A value is read
+ * from the log when it is looked up.
+ * <p>
+ * Replacing or deleting a value leaves its old record in the log as
+ * garbage, which {collectGarbage} reclaims. Modifications therefore only
+ * report whether the key existed instead of returning the old value, which
+ * would cost a read from the log. All modifications of the tree must go
+ * through this class. This class is not thread-safe.
+ * <p>
+ * Deletes are logged as well, so the log holds the whole content of the
+ * tree: opening the same directory again rebuilds the tree from the log,
+ * with all modifications up to the last {sync} or {close}.
+ */
+public class ValueLogBPlusTree implements AutoCloseable {
+
+    /**
+     * Default size of the segment files of the log.
+     */
+    public static final long DEFAULT_SEGMENT_BYTES = 64L * 1024 * 1024;
+
+    private final BPlusTree tree;
+
+    private final ValueLog log;
+
+    public ValueLogBPlusTree(BPlusTree tree, Path directory) throws IOException {
+        this(tree, directory, DEFAULT_SEGMENT_BYTES);
+    }
+
+    /**
+     * Store the values of the tree, which must be empty, in the log in the
+     * given directory. If the directory already holds a log, the tree is
+     * filled with its content.
+     */
+    public ValueLogBPlusTree(BPlusTree tree, Path directory, long segmentBytes) throws IOException {
+        if (tree.size() > 0) {
+            throw new IllegalArgumentException("The tree must be empty");
+        }
+        this.tree = tree;
+        this.log = new ValueLog(directory, segmentBytes, tree);
+    }
+
+    /**
+     * Lookup the value stored under the given key.
+     *
+     * @return The stored value, or {null} if the key does not exist.
+     */
+    public String lookup(Integer key) throws IOException {
+        String handle = tree.lookup(key);
+        return handle == null ? null : log.read(handle);
+    }
+
+    /**
+     * Insert the key/value pair, replacing an existing value for the key.
+     *
+     * @return Whether the key existed.
+     */
+    public boolean put(Integer key, String value) throws IOException {
+        String previous = tree.put(key, log.append(key, value));
+        if (previous != null) {
+            log.release(previous);
+        }
+        return previous != null;
+    }
+
+    /**
+     * @return Whether the key existed.
+     */
+    public boolean delete(Integer key) throws IOException {
+        String handle = tree.delete(key);
+        if (handle != null) {
+            log.release(handle);
+            log.delete(key);
+        }
+        return handle != null;
+    }
+
+    /**
+     * Pass all keys with {from <= key < to} to the consumer in ascending
+     * order without reading their values. A {null} bound means the range is
+     * unbounded on that side.
+     */
+    public void scanKeys(Integer from, Integer to, Consumer<Integer> consumer) {
+        tree.scan(from, to, (key, handle) -> consumer.accept(key));
+    }
+
+    /**
+     * Move the live values out of the log segments in which at least the
+     * given share of bytes is garbage, and delete these segments.
+     *
+     * @param minGarbage Share of garbage between 0 and 1.
+     * @return The number of bytes freed.
+     */
+    public long collectGarbage(double minGarbage) throws IOException {
+        return log.collect(minGarbage);
+    }
+
+    /**
+     * @return The size of the log in bytes.
+     */
+    public long logBytes() {
+        return log.bytes();
+    }
+
+    /**
+     * @return The bytes in the log that belong to replaced or deleted values
+     * and to deletes.
+     */
+    public long garbageBytes() {
+        return log.garbage();
+    }
+
+    /**
+     * Force all modifications to disk, so that they survive a crash and are
+     * restored when the directory is opened again.
+     */
+    public void sync() throws IOException {
+        log.sync();
+    }
+
+    @Override
+    public void close() throws IOException {
+        log.close();
+    }
+}
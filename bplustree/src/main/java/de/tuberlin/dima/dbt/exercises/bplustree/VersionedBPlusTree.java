@@ -0,0 +1,291 @@
+package de.tuberlin.dima.dbt.exercises.bplustree;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.function.BiConsumer;
+
+/**
+ * B+ tree with snapshot reads.
+ * <p>
+ * Every insert and delete is stamped with a new timestamp. A snapshot opened
+ * at some timestamp sees the tree as it was at that time, no matter which
+ * writes happen while the snapshot is open. The tree itself always holds the
+ * current values; the values replaced by later writes are kept in per-key
+ * version chains, newest first, for as long as an open snapshot can see them.
+ * <p>
+ * Like {BPlusTree}, this class is not thread-safe. Snapshots make it possible
+ * to interleave a long scan, e.g., one page at a time, with writes without
+ * cloning the tree.
+ */
+public class VersionedBPlusTree {
+
+    /**
+     * A value that was replaced by the write with timestamp {until}.
+     */
+    private static class Version {
+
+        final long until;
+
+        final String value;
+
+        Version older;
+
+        Version(long until, String value, Version older) {
+            this.until = until;
+            this.value = value;
+            this.older = older;
+        }
+    }
+
+    /**
+     * Position in the version chains while merging them into a scan.
+     */
+    private static class VersionCursor {
+
+        private final Iterator<Map.Entry<Integer, Version>> it;
+
+        Map.Entry<Integer, Version> entry;
+
+        VersionCursor(Iterator<Map.Entry<Integer, Version>> it) {
+            this.it = it;
+            advance();
+        }
+
+        void advance() {
+            entry = it.hasNext() ? it.next() : null;
+        }
+    }
+
+    private final BPlusTree tree;
+
+    /**
+     * Timestamp of the last write.
+     */
+    private long clock = 0;
+
+    private final NavigableMap<Integer, Version> versions = new TreeMap<>();
+
+    /**
+     * Number of open snapshots per timestamp.
+     */
+    private final NavigableMap<Long, Integer> openSnapshots = new TreeMap<>();
+
+    public VersionedBPlusTree(int capacity) {
+        this(new BPlusTree(capacity));
+    }
+
+    public VersionedBPlusTree(BPlusTree tree) {
+        this.tree = tree;
+    }
+
+    /**
+     * Lookup the current value stored under the given key.
+     */
+    public String lookup(Integer key) {
+        return tree.lookup(key);
+    }
+
+    /**
+     * Insert the key/value pair, replacing an existing value for the key.
+     *
+     * @return The replaced value, or {null} if the key did not exist.
+     */
+    public String insert(Integer key, String value) {
+        String previous = tree.put(key, value);
+        recordWrite(key, previous);
+        return previous;
+    }
+
+    /**
+     * Delete the key/value pair.
+     *
+     * @return The original value, or {null} if the key does not exist.
+     */
+    public String delete(Integer key) {
+        String previous = tree.delete(key);
+        if (previous != null) {
+            recordWrite(key, previous);
+        }
+        return previous;
+    }
+
+    /**
+     * Open a snapshot of the current state of the tree. The snapshot must be
+     * closed so that the versions it sees can be garbage collected.
+     */
+    public Snapshot openSnapshot() {
+        openSnapshots.merge(clock, 1, Integer::sum);
+        return new Snapshot(clock);
+    }
+
+    /**
+     * Remove all versions that no open snapshot can see.
+     * <p>
+     * A snapshot sees the oldest version that was replaced after it was
+     * opened. A version is therefore kept only if a snapshot was opened
+     * between the write of the value, i.e., the end of the next older
+     * version, and its replacement.
+     */
+    public void collectGarbage() {
+        if (openSnapshots.isEmpty()) {
+            versions.clear();
+            return;
+        }
+        Iterator<Map.Entry<Integer, Version>> it = versions.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Integer, Version> entry = it.next();
+            Version newest = null;
+            Version last = null;
+            Version older;
+            for (Version version = entry.getValue(); version != null; version = older) {
+                older = version.older;
+                Long opened = openSnapshots.ceilingKey(older == null ? Long.MIN_VALUE : older.until);
+                if (opened != null && opened < version.until) {
+                    if (last == null) {
+                        newest = version;
+                    } else {
+                        last.older = version;
+                    }
+                    last = version;
+                }
+            }
+            if (last == null) {
+                it.remove();
+            } else {
+                last.older = null;
+                entry.setValue(newest);
+            }
+        }
+    }
+
+    /**
+     * @return The number of keys with versions that are kept for snapshots.
+     */
+    public int versionedKeys() {
+        return versions.size();
+    }
+
+    /**
+     * @return The number of versions that are kept for snapshots.
+     */
+    public int versionCount() {
+        int count = 0;
+        for (Version version : versions.values()) {
+            for (; version != null; version = version.older) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private void recordWrite(Integer key, String previous) {
+        clock++;
+        if (!openSnapshots.isEmpty()) {
+            versions.put(key, new Version(clock, previous, versions.get(key)));
+        }
+    }
+
+    /**
+     * @return The version holding the value at the given time, or {null} if
+     * the value has not changed since then.
+     */
+    private static Version visibleVersion(Version version, long timestamp) {
+        Version visible = null;
+        while (version != null && version.until > timestamp) {
+            visible = version;
+            version = version.older;
+        }
+        return visible;
+    }
+
+    private void release(long timestamp) {
+        openSnapshots.computeIfPresent(timestamp, (ts, count) -> count == 1 ? null : count - 1);
+        collectGarbage();
+    }
+
+    /**
+     * Read-only view of the tree at a fixed timestamp.
+     */
+    public class Snapshot implements AutoCloseable {
+
+        private final long timestamp;
+
+        private boolean closed = false;
+
+        private Snapshot(long timestamp) {
+            this.timestamp = timestamp;
+        }
+
+        public long timestamp() {
+            return timestamp;
+        }
+
+        /**
+         * Lookup the value stored under the given key at the time of the
+         * snapshot.
+         */
+        public String lookup(Integer key) {
+            assert !closed;
+            Version visible = visibleVersion(versions.get(key), timestamp);
+            return visible != null ? visible.value : tree.lookup(key);
+        }
+
+        /**
+         * Pass all key/value pairs with {from <= key < to} at the time of the
+         * snapshot to the consumer in ascending key order.
+         */
+        public void scan(Integer from, Integer to, BiConsumer<Integer, String> consumer) {
+            assert !closed;
+            NavigableMap<Integer, Version> range = versions;
+            if (from != null) {
+                range = range.tailMap(from, true);
+            }
+            if (to != null) {
+                range = range.headMap(to, false);
+            }
+            VersionCursor versioned = new VersionCursor(range.entrySet().iterator());
+            tree.scan(from, to, (key, value) -> {
+                // emit older values of keys that have been deleted since
+                while (versioned.entry != null && versioned.entry.getKey() < key) {
+                    emitVisible(versioned.entry, consumer);
+                    versioned.advance();
+                }
+                if (versioned.entry != null && versioned.entry.getKey().equals(key)) {
+                    Version visible = visibleVersion(versioned.entry.getValue(), timestamp);
+                    versioned.advance();
+                    if (visible != null) {
+                        if (visible.value != null) {
+                            consumer.accept(key, visible.value);
+                        }
+                        return;
+                    }
+                }
+                consumer.accept(key, value);
+            });
+            while (versioned.entry != null) {
+                emitVisible(versioned.entry, consumer);
+                versioned.advance();
+            }
+        }
+
+        private void emitVisible(Map.Entry<Integer, Version> entry, BiConsumer<Integer, String> consumer) {
+            Version visible = visibleVersion(entry.getValue(), timestamp);
+            if (visible != null && visible.value != null) {
+                consumer.accept(entry.getKey(), visible.value);
+            }
+        }
+
+        /**
+         * Release the snapshot and drop versions that are no longer needed.
+         */
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                release(timestamp);
+            }
+        }
+    }
+}
@@ -4,8 +4,33 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.Timeout;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.PrimitiveIterator;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import static de.tuberlin.dima.dbt.grading.bplustree.BPlusTreeMatcher.isTree;
 import static de.tuberlin.dima.dbt.exercises.bplustree.BPlusTreeUtilities.*;
+import static org.hamcrest.CoreMatchers.instanceOf;
 import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.CoreMatchers.nullValue;
 import static org.junit.Assert.assertThat;
@@ -94,6 +119,233 @@ public class BPlusTreeTest {
                       newLeaf(keys(5, 6, 7), values("e", "f", "g")))))));
     }
 
+    @Test
+    public void splitRootLeaf() {
+        // given
+        tree = newTree(newLeaf(keys(1, 2, 3, 4), values("a", "b", "c", "d")));
+        // when
+        tree.insert(5, "e");
+        // then
+        assertThat(tree, isTree(newTree(newNode(
+                keys(3),
+                nodes(newLeaf(keys(1, 2), values("a", "b")),
+                      newLeaf(keys(3, 4, 5), values("c", "d", "e")))))));
+    }
+
+    @Test
+    public void splitInnerNode() {
+        // given
+        tree = newTree(newNode(keys(3, 5, 7, 9),
+                               nodes(newLeaf(keys(1, 2), values("a", "b")),
+                                     newLeaf(keys(3, 4), values("c", "d")),
+                                     newLeaf(keys(5, 6), values("e", "f")),
+                                     newLeaf(keys(7, 8), values("g", "h")),
+                                     newLeaf(keys(9, 10, 11, 12),
+                                             values("i", "j", "k", "l")))));
+        // when
+        tree.insert(13, "m");
+        // then
+        assertThat(tree, isTree(newTree(newNode(
+                keys(7),
+                nodes(newNode(keys(3, 5),
+                              nodes(newLeaf(keys(1, 2), values("a", "b")),
+                                    newLeaf(keys(3, 4), values("c", "d")),
+                                    newLeaf(keys(5, 6), values("e", "f")))),
+                      newNode(keys(9, 11),
+                              nodes(newLeaf(keys(7, 8), values("g", "h")),
+                                    newLeaf(keys(9, 10), values("i", "j")),
+                                    newLeaf(keys(11, 12, 13),
+                                            values("k", "l", "m")))))))));
+    }
+
+    @Test
+    public void appendOptimizedSplit() {
+        // given
+        tree = newTree(newNode(keys(3),
+                               nodes(newLeaf(keys(1, 2), values("a", "b")),
+                                     newLeaf(keys(3, 4, 5, 6),
+                                             values("c", "d", "e", "f")))));
+        tree.setSplitPolicy(SplitPolicy.appendOptimized());
+        // when
+        tree.insert(7, "g");
+        tree.insert(8, "h");
+        // then
+        assertThat(tree, isTree(newTree(newNode(
+                keys(3, 7),
+                nodes(newLeaf(keys(1, 2), values("a", "b")),
+                      newLeaf(keys(3, 4, 5, 6), values("c", "d", "e", "f")),
+                      newLeaf(keys(7, 8), values("g", "h")))))));
+    }
+
+    @Test
+    public void sequentialInserts() {
+        // given
+        tree = newEmptyTree();
+        tree.setSplitPolicy(SplitPolicy.adaptive());
+        // when
+        for (int i = 1; i <= 100; i++) {
+            tree.insert(i, String.valueOf(i));
+        }
+        // then
+        for (int i = 1; i <= 100; i++) {
+            assertThat(tree.lookup(i), is(String.valueOf(i)));
+        }
+        assertThat(tree.lookup(101), is(nullValue()));
+    }
+
+    @Test
+    public void separateLeafAndInnerCapacities() {
+        // given
+        tree = new BPlusTree(8, 4);
+        // when
+        for (int i = 1; i <= 200; i++) {
+            tree.insert(i * 37 % 211, String.valueOf(i * 37 % 211));
+        }
+        // then
+        for (int i = 1; i <= 200; i++) {
+            assertThat(tree.lookup(i * 37 % 211), is(String.valueOf(i * 37 % 211)));
+        }
+        InnerNode root = (InnerNode) tree.rootNode();
+        assertThat(root.getKeys().length, is(4));
+        Node child = root.getChildren()[0];
+        while (child instanceof InnerNode) {
+            child = ((InnerNode) child).getChildren()[0];
+        }
+        assertThat(child.getKeys().length, is(8));
+    }
+
+    @Test
+    public void capacitiesFromNodeSizes() {
+        // when
+        tree = BPlusTree.withNodeSizes(4096, 1024);
+        // then
+        assertThat(tree.leafCapacity(), is(170));
+        assertThat(tree.innerCapacity(), is(42));
+    }
+
+    ///// Update tests
+
+    @Test
+    public void putReplacesExistingValue() {
+        // given
+        tree = newTree(newNode(keys(3),
+                               nodes(newLeaf(keys(1, 2), values("a", "b")),
+                                     newLeaf(keys(3, 4), values("c", "d")))));
+        // when
+        String previous = tree.put(3, "x");
+        // then
+        assertThat(previous, is("c"));
+        assertThat(tree, isTree(newTree(newNode(keys(3),
+                nodes(newLeaf(keys(1, 2), values("a", "b")),
+                      newLeaf(keys(3, 4), values("x", "d")))))));
+    }
+
+    @Test
+    public void conditionalUpdates() {
+        // given
+        tree = newTree(newLeaf(keys(1, 2, 3), values("a", "b", "c")));
+        // when
+        String existing = tree.putIfAbsent(1, "x");
+        String absent = tree.putIfAbsent(4, "d");
+        boolean replaced = tree.replace(2, "b", "y");
+        boolean notReplaced = tree.replace(3, "b", "z");
+        String computed = tree.compute(1, (key, value) -> value + key);
+        String removed = tree.compute(3, (key, value) -> null);
+        // then
+        assertThat(existing, is("a"));
+        assertThat(absent, is(nullValue()));
+        assertThat(replaced, is(true));
+        assertThat(notReplaced, is(false));
+        assertThat(computed, is("a1"));
+        assertThat(removed, is(nullValue()));
+        assertThat(tree, isTree(newTree(newLeaf(keys(1, 2, 4), values("a1", "y", "d")))));
+    }
+
+    ///// Order statistics tests
+
+    @Test
+    public void rankAndSelect() {
+        // given
+        tree = newTree(newNode(keys(5, 9),
+                               nodes(newLeaf(keys(1, 3), values("a", "c")),
+                                     newLeaf(keys(5, 7), values("e", "g")),
+                                     newLeaf(keys(9, 11), values("i", "k")))));
+        // when
+        tree.insert(4, "d");
+        tree.delete(9);
+        // then
+        assertThat(tree.size(), is(6));
+        assertThat(tree.rank(5), is(3));
+        assertThat(tree.rank(10), is(5));
+        assertThat(tree.select(3).getKey(), is(5));
+        assertThat(tree.select(5).getValue(), is("k"));
+    }
+
+    @Test
+    public void descendingRangeWalksLeavesBackwards() {
+        // given
+        tree = newTree(newNode(keys(5, 9),
+                               nodes(newLeaf(keys(1, 3), values("a", "c")),
+                                     newLeaf(keys(5, 7), values("e", "g")),
+                                     newLeaf(keys(9, 11), values("i", "k")))));
+        tree.insert(8, "h");
+        // when
+        Iterator<Map.Entry<Integer, String>> range = tree.descendingRange(3, 9);
+        List<Map.Entry<Integer, String>> last = tree.lastN(2);
+        // then
+        StringBuilder scanned = new StringBuilder();
+        range.forEachRemaining(entry -> scanned.append(entry.getValue()));
+        assertThat(scanned.toString(), is("hgec"));
+        assertThat(last.get(0).getKey(), is(11));
+        assertThat(last.get(1).getKey(), is(9));
+    }
+
+    @Test
+    public void cursorSeeksAndMovesInBothDirections() {
+        // given
+        tree = newTree(newNode(keys(5, 9),
+                               nodes(newLeaf(keys(1, 3), values("a", "c")),
+                                     newLeaf(keys(5, 7), values("e", "g")),
+                                     newLeaf(keys(9, 11), values("i", "k")))));
+        Cursor cursor = tree.cursor();
+        // when
+        StringBuilder scanned = new StringBuilder();
+        for (boolean found = cursor.seek(4); found && cursor.key() < 10; found = cursor.next()) {
+            scanned.append(cursor.value());
+        }
+        // then
+        assertThat(scanned.toString(), is("egi"));
+        assertThat(cursor.key(), is(11));
+        assertThat(cursor.prev() && cursor.prev() && cursor.prev(), is(true));
+        assertThat(cursor.value(), is("e"));
+        assertThat(cursor.seek(12), is(false));
+        assertThat(cursor.isValid(), is(false));
+        assertThat(cursor.seekLast() && cursor.key() == 11, is(true));
+        assertThat(cursor.seekFirst() && !cursor.prev(), is(true));
+    }
+
+    @Test
+    public void navigableMapView() {
+        // given
+        tree = newTree(newNode(keys(5, 9),
+                               nodes(newLeaf(keys(1, 3), values("a", "c")),
+                                     newLeaf(keys(5, 7), values("e", "g")),
+                                     newLeaf(keys(9, 11), values("i", "k")))));
+        NavigableMap<Integer, String> map = new BPlusTreeMap(tree);
+        // when
+        NavigableMap<Integer, String> range = map.subMap(3, false, 11, false);
+        map.put(8, "h");
+        // then
+        assertThat(map.floorKey(6), is(5));
+        assertThat(map.ceilingKey(6), is(7));
+        assertThat(map.higherKey(11), is(nullValue()));
+        assertThat(range.size(), is(4));
+        assertThat(new ArrayList<>(range.keySet()), is(Arrays.asList(5, 7, 8, 9)));
+        assertThat(new ArrayList<>(range.descendingMap().values()), is(Arrays.asList("i", "h", "g", "e")));
+        assertThat(map.headMap(5).lastKey(), is(3));
+        assertThat(tree.lookup(8), is("h"));
+    }
+
     ///// Deletion tests
 
     @Test
@@ -191,6 +443,805 @@ public class BPlusTreeTest {
     }
 
 
+    @Test
+    public void deleteWithDeferredRebalancing() {
+        // given
+        tree = newTree(newNode(keys(3, 5),
+                               nodes(newLeaf(keys(1, 2), values("a", "b")),
+                                     newLeaf(keys(3, 4), values("c", "d")),
+                                     newLeaf(keys(5, 6), values("e", "f")))));
+        tree.setDeferredRebalancing(2);
+        // when
+        tree.delete(2);
+        // then
+        assertThat(tree, isTree(newTree(newNode(keys(3, 5),
+                nodes(newLeaf(keys(1), values("a")),
+                      newLeaf(keys(3, 4), values("c", "d")),
+                      newLeaf(keys(5, 6), values("e", "f")))))));
+        // when
+        tree.delete(6);
+        // then
+        assertThat(tree, isTree(newTree(newNode(keys(4),
+                nodes(newLeaf(keys(1, 3), values("a", "c")),
+                      newLeaf(keys(4, 5), values("d", "e")))))));
+    }
+
+    ///// Compaction tests
+
+    @Test
+    public void compactSparseLeaves() {
+        // given
+        tree = newTree(newNode(keys(3, 5, 7),
+                nodes(newLeaf(keys(1, 2), values("a", "b")),
+                        newLeaf(keys(3, 4), values("c", "d")),
+                        newLeaf(keys(5, 6), values("e", "f")),
+                        newLeaf(keys(7, 8), values("g", "h")))));
+        // when
+        new BPlusTreeCompactor(tree).compact();
+        // then
+        assertThat(tree, isTree(newTree(newNode(
+                keys(4, 7),
+                nodes(newLeaf(keys(1, 2, 3), values("a", "b", "c")),
+                        newLeaf(keys(4, 5, 6), values("d", "e", "f")),
+                        newLeaf(keys(7, 8), values("g", "h")))))));
+    }
+
+    @Test
+    public void compactInBoundedSteps() {
+        // given
+        tree = newTree(newNode(keys(5),
+                nodes(newNode(keys(3),
+                                nodes(newLeaf(keys(1, 2), values("a", "b")),
+                                        newLeaf(keys(3, 4), values("c", "d")))),
+                        newNode(keys(7),
+                                nodes(newLeaf(keys(5, 6), values("e", "f")),
+                                        newLeaf(keys(7, 8), values("g", "h")))))));
+        BPlusTreeCompactor compactor = new BPlusTreeCompactor(tree, 1.0);
+        // when
+        boolean done = compactor.step(1);
+        // then
+        assertThat(done, is(false));
+        assertThat(tree, isTree(newTree(newNode(keys(5),
+                nodes(newNode(keys(),
+                                nodes(newLeaf(keys(1, 2, 3, 4), values("a", "b", "c", "d")))),
+                        newNode(keys(7),
+                                nodes(newLeaf(keys(5, 6), values("e", "f")),
+                                        newLeaf(keys(7, 8), values("g", "h")))))))));
+        // when
+        compactor.compact();
+        // then
+        assertThat(tree, isTree(newTree(newNode(keys(5),
+                nodes(newLeaf(keys(1, 2, 3, 4), values("a", "b", "c", "d")),
+                        newLeaf(keys(5, 6, 7, 8), values("e", "f", "g", "h")))))));
+    }
+
+    ///// Snapshot tests
+
+    @Test
+    public void snapshotIgnoresLaterWrites() {
+        // given
+        VersionedBPlusTree versioned = new VersionedBPlusTree(
+                newTree(newLeaf(keys(1, 2, 3), values("a", "b", "c"))));
+        VersionedBPlusTree.Snapshot snapshot = versioned.openSnapshot();
+        // when
+        versioned.insert(2, "x");
+        versioned.delete(3);
+        versioned.insert(4, "d");
+        // then
+        StringBuilder scanned = new StringBuilder();
+        snapshot.scan(null, null, (key, value) -> scanned.append(key).append(value));
+        assertThat(scanned.toString(), is("1a2b3c"));
+        assertThat(snapshot.lookup(2), is("b"));
+        assertThat(versioned.lookup(2), is("x"));
+        // when
+        snapshot.close();
+        // then
+        assertThat(versioned.versionedKeys(), is(0));
+    }
+
+    @Test
+    public void garbageCollectionKeepsOnlyVisibleVersions() {
+        // given
+        VersionedBPlusTree versioned = new VersionedBPlusTree(
+                newTree(newLeaf(keys(1, 2), values("a", "x"))));
+        VersionedBPlusTree.Snapshot first = versioned.openSnapshot();
+        versioned.insert(1, "b");
+        versioned.insert(1, "c");
+        versioned.insert(1, "d");
+        VersionedBPlusTree.Snapshot second = versioned.openSnapshot();
+        versioned.insert(1, "e");
+        versioned.insert(1, "f");
+        versioned.delete(2);
+        assertThat(versioned.versionCount(), is(6));
+        // when
+        versioned.collectGarbage();
+        // then
+        assertThat(versioned.versionCount(), is(3));
+        assertThat(first.lookup(1), is("a"));
+        assertThat(second.lookup(1), is("d"));
+        assertThat(second.lookup(2), is("x"));
+        assertThat(versioned.lookup(1), is("f"));
+        // when
+        first.close();
+        // then
+        assertThat(versioned.versionCount(), is(2));
+        StringBuilder scanned = new StringBuilder();
+        second.scan(null, null, (key, value) -> scanned.append(key).append(value));
+        assertThat(scanned.toString(), is("1d2x"));
+        second.close();
+        assertThat(versioned.versionCount(), is(0));
+    }
+
+    ///// Frozen tree tests
+
+    @Test
+    public void lookupInFrozenTree() {
+        // given
+        tree = newEmptyTree();
+        for (int i = 2; i <= 200; i += 2) {
+            tree.insert(i, String.valueOf(i));
+        }
+        // when
+        FrozenBPlusTree frozen = FrozenBPlusTree.of(tree);
+        // then
+        assertThat(frozen.size(), is(100));
+        for (int i = 0; i <= 201; i++) {
+            assertThat(frozen.lookup(i), is(i > 0 && i % 2 == 0 ? String.valueOf(i) : null));
+        }
+    }
+
+    @Test
+    public void lookupInLearnedIndex() {
+        // given
+        tree = newEmptyTree();
+        for (int i = -1000; i <= 1000; i++) {
+            // the gaps between the keys grow, so no single line fits
+            tree.insert(i * Math.abs(i), String.valueOf(i));
+        }
+        FrozenBPlusTree frozen = FrozenBPlusTree.of(tree);
+        // when
+        LearnedIndex learned = frozen.learnedIndex(4);
+        // then
+        assertThat(learned.height(), is(2));
+        for (int i = -1001; i <= 1001; i++) {
+            int key = i * Math.abs(i);
+            assertThat(learned.lookup(key), is(frozen.lookup(key)));
+            assertThat(learned.lookup(key + 1), is(frozen.lookup(key + 1)));
+        }
+    }
+
+    ///// Asynchronous access tests
+
+    @Test
+    public void concurrentAsyncInsertsAndLookups() throws Exception {
+        // given
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        ExecutorService clients = Executors.newFixedThreadPool(8);
+        AsyncBPlusTree async = new AsyncBPlusTree(newEmptyTree(), executor);
+        try {
+            // when
+            List<CompletableFuture<?>> inserts = new ArrayList<>();
+            for (int i = 0; i < 1000; i++) {
+                int key = i * 7919 % 1000;
+                inserts.add(CompletableFuture.runAsync(
+                        () -> async.insertAsync(key, "v" + key).join(), clients));
+            }
+            CompletableFuture.allOf(inserts.toArray(new CompletableFuture<?>[0])).get();
+            // then
+            for (int i = 0; i < 1000; i++) {
+                assertThat(async.lookupAsync(i).get(), is("v" + i));
+            }
+            assertThat(async.lookupAsync(1000).get(), is(nullValue()));
+        } finally {
+            clients.shutdown();
+            executor.shutdown();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void asyncWriteFailureOnlyFailsItsRequest() throws Exception {
+        // given
+        tree = newEmptyTree();
+        AtomicInteger inserts = new AtomicInteger();
+        tree.setSplitPolicy(new SplitPolicy() {
+            @Override
+            public int splitIndex(int size, int insertIndex, boolean rightmost) {
+                return size / 2;
+            }
+
+            @Override
+            public void recordInsert(int size, int insertIndex) {
+                if (inserts.incrementAndGet() == 5) {
+                    throw new AssertionError("fifth insert");
+                }
+            }
+        });
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        CountDownLatch started = new CountDownLatch(1);
+        // hold the drain task back, so that all requests form one batch
+        executor.execute(() -> {
+            try {
+                started.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        AsyncBPlusTree async = new AsyncBPlusTree(tree, executor);
+        try {
+            List<CompletableFuture<Void>> writes = new ArrayList<>();
+            for (int key = 0; key < 10; key++) {
+                writes.add(async.insertAsync(key, "v" + key));
+            }
+            writes.add(async.insertAsync(2, "x"));
+            // when
+            started.countDown();
+            // then
+            for (int i = 0; i < writes.size(); i++) {
+                try {
+                    writes.get(i).get();
+                    assertThat(i == 4, is(false));
+                } catch (ExecutionException e) {
+                    assertThat(i, is(4));
+                    assertThat(e.getCause(), instanceOf(AssertionError.class));
+                }
+            }
+            assertThat(async.lookupAsync(2).get(), is("x"));
+            assertThat(async.lookupAsync(4).get(), is(nullValue()));
+            assertThat(tree.size(), is(9));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void shardedTreeSplitsHotShards() throws Exception {
+        // given
+        try (ShardedBPlusTree sharded = new ShardedBPlusTree(Arrays.asList(100), 4, 0, 3)) {
+            join(insertRange(sharded, 0, 200));
+            // when
+            for (int round = 0; round < 4; round++) {
+                join(lookupRange(sharded, 0, 100));
+            }
+            sharded.rebalance().get();
+            assertThat(sharded.shardCount(), is(3));
+            for (int round = 0; round < 12; round++) {
+                join(lookupRange(sharded, 0, 50));
+            }
+            sharded.rebalance().get();
+            // then
+            assertThat(sharded.shardCount(), is(3));
+            assertThat(sharded.lookup(50).get(), is("v50"));
+            assertThat(sharded.lookup(150).get(), is("v150"));
+            List<Map.Entry<Integer, String>> range = sharded.scan(40, 110).get();
+            assertThat(range.size(), is(70));
+            assertThat(range.get(0).getKey(), is(40));
+            assertThat(range.get(69).getKey(), is(109));
+        }
+    }
+
+    @Test
+    public void shardedTreeMergesColdShards() throws Exception {
+        // given
+        try (ShardedBPlusTree sharded = new ShardedBPlusTree(Arrays.asList(100, 200, 300), 4, 0, 8)) {
+            join(insertRange(sharded, 0, 400));
+            // when
+            for (int round = 0; round < 20; round++) {
+                join(lookupRange(sharded, 300, 400));
+            }
+            sharded.rebalance().get();
+            // then
+            assertThat(sharded.shardCount(), is(4));
+            assertThat(sharded.lookup(150).get(), is("v150"));
+            List<Map.Entry<Integer, String>> all = sharded.scan(null, null).get();
+            assertThat(all.size(), is(400));
+            for (int i = 0; i < all.size(); i++) {
+                assertThat(all.get(i).getKey(), is(i));
+            }
+        }
+    }
+
+    private static List<CompletableFuture<?>> insertRange(ShardedBPlusTree sharded, int from, int to) {
+        List<CompletableFuture<?>> futures = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            futures.add(sharded.insert(i, "v" + i));
+        }
+        return futures;
+    }
+
+    private static List<CompletableFuture<?>> lookupRange(ShardedBPlusTree sharded, int from, int to) {
+        List<CompletableFuture<?>> futures = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            futures.add(sharded.lookup(i));
+        }
+        return futures;
+    }
+
+    private static void join(List<CompletableFuture<?>> futures) throws Exception {
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).get();
+    }
+
+    ///// Write buffer tests
+
+    @Test
+    public void bufferedWritesAreMergedInBatches() {
+        // given
+        tree = newTree(newLeaf(keys(1, 2, 3), values("a", "b", "c")));
+        BufferedBPlusTree buffered = new BufferedBPlusTree(tree, 3);
+        // when
+        buffered.insert(5, "e");
+        buffered.delete(2);
+        // then
+        assertThat(buffered.bufferedKeys(), is(2));
+        assertThat(buffered.lookup(2), is(nullValue()));
+        assertThat(buffered.lookup(5), is("e"));
+        assertThat(tree.lookup(2), is("b"));
+        StringBuilder scanned = new StringBuilder();
+        buffered.scan(null, null, (key, value) -> scanned.append(key).append(value));
+        assertThat(scanned.toString(), is("1a3c5e"));
+        // when
+        buffered.insert(1, "x");
+        // then
+        assertThat(buffered.bufferedKeys(), is(0));
+        assertThat(tree, isTree(
+                newTree(newLeaf(keys(1, 3, 5), values("x", "c", "e")))));
+    }
+
+    @Test
+    public void flushMergesSortedWritesAcrossLeaves() {
+        // given
+        tree = new BPlusTree(4);
+        BPlusTree expected = new BPlusTree(4);
+        for (int key = 0; key < 60; key += 3) {
+            tree.insert(key, "a" + key);
+            expected.insert(key, "a" + key);
+        }
+        BufferedBPlusTree buffered = new BufferedBPlusTree(tree, 100);
+        for (int key = 59; key > 0; key -= 2) {
+            buffered.insert(key, "b" + key);
+        }
+        for (int key = 0; key < 30; key += 6) {
+            buffered.delete(key);
+        }
+        // when
+        buffered.flush();
+        // then
+        for (int key = 0; key < 60; key++) {
+            if (key % 6 == 0 && key < 30) {
+                expected.delete(key);
+            } else if (key % 2 == 1) {
+                expected.put(key, "b" + key);
+            }
+        }
+        assertThat(tree, isTree(expected));
+        assertThat(tree.size(), is(expected.size()));
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void bufferRejectsNullValues() {
+        // given
+        tree = newTree(newLeaf(keys(1, 2), values("a", "b")));
+        BufferedBPlusTree buffered = new BufferedBPlusTree(tree, 10);
+        // when
+        buffered.insert(1, null);
+    }
+
+
+    ///// Right link tests
+
+    @Test
+    public void splitsMaintainRightLinks() {
+        // given
+        tree = newTree(newNode(keys(5),
+                               nodes(newLeaf(keys(1, 2, 3, 4), values("a", "b", "c", "d")),
+                                     newLeaf(keys(5, 6), values("e", "f")))));
+        // when
+        tree.insert(0, "z");
+        // then
+        InnerNode root = (InnerNode) tree.rootNode();
+        Node first = root.getChildren()[0];
+        Node second = root.getChildren()[1];
+        Node third = root.getChildren()[2];
+        assertThat(first.getRightLink() == second, is(true));
+        assertThat(first.getHighKey(), is(root.getKeys()[0]));
+        assertThat(second.getRightLink() == third, is(true));
+        assertThat(second.getHighKey(), is(5));
+        assertThat(third.getRightLink(), is(nullValue()));
+        assertThat(third.getHighKey(), is(nullValue()));
+        StringBuilder scanned = new StringBuilder();
+        tree.scan(2, null, (key, value) -> scanned.append(value));
+        assertThat(scanned.toString(), is("bcdef"));
+    }
+
+
+    ///// Serialization tests
+
+    @Test
+    public void serializeAndDeserializeTree() throws IOException {
+        // given
+        tree = newTree(newNode(keys(3),
+                               nodes(newLeaf(keys(1, 2), values("a", "b")),
+                                     newLeaf(keys(3, 4), values("c", "d")))));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        // when
+        BPlusTreeSerializer.write(tree, Channels.newChannel(out));
+        BPlusTree copy = BPlusTreeSerializer.read(Channels.newChannel(new ByteArrayInputStream(out.toByteArray())));
+        // then
+        assertThat(copy, isTree(tree));
+        assertThat(copy.lookup(4), is("d"));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectCorruptedTree() throws IOException {
+        // given
+        tree = newTree(newLeaf(keys(1, 2, 3), values("a", "b", "c")));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BPlusTreeSerializer.write(tree, Channels.newChannel(out));
+        byte[] bytes = out.toByteArray();
+        // when
+        bytes[bytes.length / 2] ^= 1;
+        BPlusTreeSerializer.read(Channels.newChannel(new ByteArrayInputStream(bytes)));
+    }
+
+
+    @Test(expected = IOException.class)
+    public void rejectMalformedRecordWithValidChecksum() throws IOException {
+        // given
+        tree = newTree(newLeaf(keys(1, 2, 3), values("a", "b", "c")));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BPlusTreeSerializer.write(tree, Channels.newChannel(out));
+        ByteBuffer bytes = ByteBuffer.wrap(out.toByteArray());
+        int payload = 5 * Integer.BYTES + Integer.BYTES;
+        int length = bytes.getInt(payload - Integer.BYTES);
+        // when
+        bytes.putInt(payload + 1 + 4 * Integer.BYTES, -1);
+        bytes.putInt(payload + length, BPlusTreeSerializer.checksum(bytes.array(), payload, length));
+        BPlusTreeSerializer.read(Channels.newChannel(new ByteArrayInputStream(bytes.array())));
+    }
+
+
+    @Test
+    public void checkpointWritesOnlyChangedNodes() throws IOException {
+        // given
+        tree = newTree(newNode(keys(3),
+                               nodes(newLeaf(keys(1, 2), values("a", "b")),
+                                     newLeaf(keys(3, 4), values("c", "d")))));
+        Path file = Files.createTempFile("checkpoint", ".bpt");
+        try (Checkpointer checkpointer = Checkpointer.create(tree, file)) {
+            assertThat(checkpointer.checkpoint(), is(3));
+            // when
+            tree.insert(5, "e");
+            // then
+            assertThat(checkpointer.checkpoint(), is(2));
+            assertThat(checkpointer.checkpoint(), is(0));
+        }
+        try (Checkpointer checkpointer = Checkpointer.open(file)) {
+            assertThat(checkpointer.tree(), isTree(tree));
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void checkpointRejectsOversizedNode() throws IOException {
+        // given
+        tree = newTree(newLeaf(keys(1, 2, 3), values("a", "b", "c")));
+        Path file = Files.createTempFile("checkpoint", ".bpt");
+        long page;
+        try (Checkpointer checkpointer = Checkpointer.create(tree, file)) {
+            checkpointer.checkpoint();
+            page = tree.rootNode().page;
+        }
+        ByteBuffer bytes = ByteBuffer.wrap(Files.readAllBytes(file));
+        int length = bytes.getInt((int) page);
+        int payload = (int) page + Integer.BYTES;
+        // when
+        bytes.putInt(payload + 1, 1000);
+        bytes.putInt(payload + length, BPlusTreeSerializer.checksum(bytes.array(), payload, length));
+        Files.write(file, bytes.array());
+        try {
+            Checkpointer.open(file).close();
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+
+    @Test
+    public void replayLogInParallel() throws IOException {
+        // given
+        tree = newTree(newLeaf(keys(1, 2, 3), values("a", "b", "c")));
+        Path file = Files.createTempFile("mutations", ".log");
+        try (MutationLog log = MutationLog.open(file)) {
+            log.logInsert(4, "d");
+            log.logDelete(2);
+            log.logInsert(1, "x");
+            log.logInsert(2, "y");
+            log.logDelete(4);
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            // when
+            long records = LogRecovery.replay(tree, file, 2, executor);
+            // then
+            assertThat(records, is(5L));
+            StringBuilder scanned = new StringBuilder();
+            tree.scan(null, null, (key, value) -> scanned.append(key).append(value));
+            assertThat(scanned.toString(), is("1x2y3c"));
+        } finally {
+            executor.shutdown();
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void replayLogIntoMultiLevelTree() throws IOException {
+        // given
+        tree = new BPlusTree(4);
+        BPlusTree expected = new BPlusTree(4);
+        for (int key = 0; key < 400; key += 2) {
+            tree.insert(key, "a" + key);
+            expected.insert(key, "a" + key);
+        }
+        Path file = Files.createTempFile("mutations", ".log");
+        try (MutationLog log = MutationLog.open(file)) {
+            for (int round = 0; round < 3; round++) {
+                for (int key = 397 - round; key >= 0; key -= 3) {
+                    log.logInsert(key, "b" + round);
+                }
+                for (int key = round; key < 400; key += 10) {
+                    log.logDelete(key);
+                }
+            }
+        }
+        for (int key = 0; key < 400; key++) {
+            for (int round = 0; round < 3; round++) {
+                if ((397 - round - key) % 3 == 0 && key <= 397 - round) {
+                    expected.put(key, "b" + round);
+                }
+                if (key >= round && (key - round) % 10 == 0) {
+                    expected.delete(key);
+                }
+            }
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            // when
+            LogRecovery.replay(tree, file, 3, executor);
+            // then
+            assertThat(((InnerNode) tree.rootNode()).getChildren()[0], instanceOf(InnerNode.class));
+            StringBuilder scanned = new StringBuilder();
+            tree.scan(null, null, (key, value) -> scanned.append(key).append(value));
+            StringBuilder scannedExpected = new StringBuilder();
+            expected.scan(null, null, (key, value) -> scannedExpected.append(key).append(value));
+            assertThat(scanned.toString(), is(scannedExpected.toString()));
+            assertThat(tree.size(), is(expected.size()));
+        } finally {
+            executor.shutdown();
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void spillingTreeReloadsEvictedLeaves() throws IOException {
+        // given
+        tree = newTree(newNode(keys(3, 5),
+                               nodes(newLeaf(keys(1, 2), values("a", "b")),
+                                     newLeaf(keys(3, 4), values("c", "d")),
+                                     newLeaf(keys(5, 6), values("e", "f")))));
+        Path file = Files.createTempFile("leaves", ".spill");
+        try (SpillingBPlusTree spilling = new SpillingBPlusTree(tree, file, 0)) {
+            assertThat(spilling.evictedLeaves(), is(3));
+            // when
+            spilling.insert(7, "g");
+            spilling.delete(2);
+            // then
+            assertThat(spilling.lookup(4), is("d"));
+            assertThat(spilling.lookup(7), is("g"));
+            assertThat(spilling.residentBytes(), is(0L));
+        }
+        assertThat(Files.exists(file), is(false));
+        assertThat(tree, isTree(newTree(newNode(keys(5),
+                                                nodes(newLeaf(keys(1, 3, 4), values("a", "c", "d")),
+                                                      newLeaf(keys(5, 6, 7), values("e", "f", "g")))))));
+    }
+
+    @Test
+    public void spillingTreeKeepsEmptyValues() throws IOException {
+        // given
+        tree = newTree(newLeaf(keys(1, 2, 3), values("a", new String(""), "c")));
+        Path file = Files.createTempFile("leaves", ".spill");
+        // when
+        try (SpillingBPlusTree spilling = new SpillingBPlusTree(tree, file, 0)) {
+            // then
+            assertThat(spilling.lookup(3), is("c"));
+            assertThat(spilling.lookup(2), is(""));
+        }
+        assertThat(tree.lookup(3), is("c"));
+    }
+
+    @Test
+    public void scanReadsEvictedLeavesAhead() throws IOException {
+        // given
+        tree = new BPlusTree(4);
+        for (int key = 0; key < 200; key++) {
+            tree.insert(key, "v" + key);
+        }
+        Path file = Files.createTempFile("leaves", ".spill");
+        try (SpillingBPlusTree spilling = new SpillingBPlusTree(tree, file, 0)) {
+            int leaves = spilling.evictedLeaves();
+            // when
+            List<Integer> keys = new ArrayList<>();
+            List<Integer> pending = new ArrayList<>();
+            spilling.scan(10, 190, (key, value) -> {
+                assertThat(value, is("v" + key));
+                keys.add(key);
+                pending.add(spilling.pendingPrefetches());
+            });
+            // then
+            assertThat(keys.size(), is(180));
+            assertThat(keys.get(0), is(10));
+            assertThat(keys.get(179), is(189));
+            assertThat(spilling.evictedLeaves(), is(leaves));
+            // every leaf of the range but the first is read ahead and used
+            int scanned = 1;
+            for (Node leaf = tree.findLeafNode(10); leaf.getHighKey() < 190; leaf = leaf.getRightLink()) {
+                scanned++;
+            }
+            assertThat(spilling.prefetchesIssued(), is((long) scanned - 1));
+            assertThat(spilling.prefetchesUsed(), is(spilling.prefetchesIssued()));
+            // the first leaf was not read ahead, so the window grew
+            assertThat(Collections.max(pending) >= 2, is(true));
+        }
+    }
+
+    @Test
+    public void filterSkipsEvictedLeafOnMiss() throws IOException {
+        // given
+        tree = new BPlusTree(4);
+        for (int key = 0; key < 200; key += 2) {
+            tree.insert(key, "v" + key);
+        }
+        Path file = Files.createTempFile("leaves", ".spill");
+        try (SpillingBPlusTree spilling = new SpillingBPlusTree(tree, file, 0)) {
+            int leaves = spilling.evictedLeaves();
+            // when
+            String missing = tree.lookup(101);
+            // then
+            assertThat(missing, is(nullValue()));
+            assertThat(spilling.evictedLeaves(), is(leaves));
+            assertThat(tree.lookup(100), is("v100"));
+            assertThat(spilling.evictedLeaves(), is(leaves - 1));
+        }
+    }
+
+    @Test
+    public void valueLogCollectsReplacedValues() throws IOException {
+        // given
+        tree = new BPlusTree(4);
+        Path directory = Files.createTempDirectory("values");
+        try (ValueLogBPlusTree separated = new ValueLogBPlusTree(tree, directory, 16 * 1024)) {
+            for (int key = 0; key < 40; key++) {
+                separated.put(key, String.join("", Collections.nCopies(1000, "a" + key)));
+            }
+            for (int key = 0; key < 40; key += 2) {
+                separated.put(key, "b" + key);
+            }
+            separated.delete(1);
+            long bytes = separated.logBytes();
+            // when
+            long freed = separated.collectGarbage(0.5);
+            // then
+            assertThat(freed > 0, is(true));
+            assertThat(separated.logBytes(), is(bytes - freed));
+            assertThat(separated.lookup(1), is(nullValue()));
+            assertThat(separated.lookup(2), is("b2"));
+            assertThat(separated.lookup(3), is(String.join("", Collections.nCopies(1000, "a3"))));
+            assertThat(tree.size(), is(39));
+        }
+    }
+
+    @Test
+    public void valueLogRestoresTreeWhenReopened() throws IOException {
+        // given
+        tree = new BPlusTree(4);
+        Path directory = Files.createTempDirectory("values");
+        try (ValueLogBPlusTree separated = new ValueLogBPlusTree(tree, directory, 1024)) {
+            for (int key = 0; key < 20; key++) {
+                separated.put(key, "a" + key);
+            }
+            separated.put(3, "b3");
+            separated.delete(4);
+            separated.collectGarbage(0);
+        }
+        // when
+        BPlusTree reopened = new BPlusTree(4);
+        try (ValueLogBPlusTree separated = new ValueLogBPlusTree(reopened, directory, 1024)) {
+            // then
+            assertThat(reopened.size(), is(19));
+            assertThat(separated.lookup(3), is("b3"));
+            assertThat(separated.lookup(4), is(nullValue()));
+            assertThat(separated.lookup(19), is("a19"));
+        }
+    }
+
+
+    ///// Multimap tests
+
+    @Test
+    public void multiMapKeepsSortedPostingLists() {
+        // given
+        BPlusMultiMap multiMap = new BPlusMultiMap(4);
+        // when
+        for (long id = 999; id >= 0; id--) {
+            multiMap.put(7, id * 3);
+        }
+        multiMap.put(5, 42);
+        multiMap.remove(7, 3);
+        // then
+        assertThat(multiMap.count(7), is(999));
+        assertThat(multiMap.overflowPages() > 0, is(true));
+        PrimitiveIterator.OfLong ids = multiMap.get(7);
+        assertThat(ids.nextLong(), is(0L));
+        assertThat(ids.nextLong(), is(6L));
+        assertThat(multiMap.get(5).nextLong(), is(42L));
+        assertThat(multiMap.removeAll(7), is(999));
+        assertThat(multiMap.overflowPages(), is(0));
+        assertThat(multiMap.get(7).hasNext(), is(false));
+    }
+
+    @Test
+    public void secondaryIndexFollowsUpdates() {
+        // given
+        tree = newTree(newNode(keys(3),
+                               nodes(newLeaf(keys(1, 2), values("red:7", "blue:9")),
+                                     newLeaf(keys(3, 4), values("red:3", "green:5")))));
+        IndexedBPlusTree indexed = new IndexedBPlusTree(tree);
+        SecondaryIndex colors = indexed.createIndex(value -> value.startsWith("red") ? 1 : value.length());
+        // when
+        indexed.put(-5, "red:1");
+        indexed.put(2, "red:2");
+        indexed.delete(3);
+        // then
+        assertThat(colors.count(1), is(3));
+        assertThat(colors.keys(1), is(new int[]{-5, 1, 2}));
+        assertThat(colors.keys(6), is(new int[0]));
+        assertThat(colors.keys(7), is(new int[]{4}));
+        List<Map.Entry<Integer, String>> red = colors.lookup(1);
+        assertThat(red.get(2).getValue(), is("red:2"));
+    }
+
+    @Test
+    public void failingExtractorLeavesTreeAndIndexUnchanged() {
+        // given
+        tree = newTree(newLeaf(keys(1, 2), values("red:1", "blue:2")));
+        IndexedBPlusTree indexed = new IndexedBPlusTree(tree);
+        Set<String> broken = new HashSet<>();
+        SecondaryIndex colors = indexed.createIndex(value -> {
+            if (broken.contains(value)) {
+                throw new IllegalArgumentException(value);
+            }
+            return value.startsWith("red") ? 1 : 2;
+        });
+        broken.add("red:3");
+        broken.add("blue:2");
+        int failed = 0;
+        // when
+        for (Runnable modification : Arrays.<Runnable>asList(() -> indexed.put(3, "red:3"),
+                                                             () -> indexed.put(2, "red:2"),
+                                                             () -> indexed.delete(2))) {
+            try {
+                modification.run();
+            } catch (IllegalArgumentException e) {
+                failed++;
+            }
+        }
+        // then
+        assertThat(failed, is(3));
+        assertThat(tree, isTree(newTree(newLeaf(keys(1, 2), values("red:1", "blue:2")))));
+        assertThat(colors.keys(1), is(new int[]{1}));
+        assertThat(colors.keys(2), is(new int[]{2}));
+    }
+
 
 /*
     @Test